@@ -0,0 +1,34 @@
+package by.gstu.npa.cw.core;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Reproducible inputs for the benchmarks.
+ */
+public final class BenchmarkImages {
+
+    private BenchmarkImages() {
+        throw new AssertionError();
+    }
+
+    public static BufferedImage noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                row[x] = random.nextInt() & 0xFFFFFF;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Noise smoothed once, which compresses like a photograph rather than like noise.
+     */
+    public static BufferedImage photo(int width, int height, long seed) {
+        return new BoxSmoother().smooth(noise(width, height, seed), 9, 2);
+    }
+}
@@ -0,0 +1,73 @@
+package by.gstu.npa.cw.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The smoothing kernel a client runs, on packed pixels and on a {@link BufferedImage} as received from the server,
+ * with scalar channel sums and with sums in packed lanes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BoxSmootherBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"3", "9", "29"})
+    public int kernelSize;
+
+    @Param({"1", "5"})
+    public int repeatCount;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean packedLanes;
+
+    private ExecutorService executor;
+    private BoxSmoother smoother;
+    private BufferedImage image;
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        smoother = new BoxSmoother(executor, threads, packedLanes);
+        image = BenchmarkImages.noise(size, size, 1);
+        pixels = image.getRGB(0, 0, size, size, null, 0, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int[] smoothPixels() {
+        smoother.smooth(pixels, size, size, kernelSize, repeatCount);
+        return pixels;
+    }
+
+    @Benchmark
+    public BufferedImage smoothImage() {
+        return smoother.smooth(image, kernelSize, repeatCount);
+    }
+}
@@ -0,0 +1,78 @@
+package by.gstu.npa.cw.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Common#send} and {@link Common#receive} of one frame with every codec, and the same frame encoded into and
+ * decoded from pooled direct buffers as it travels over channels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodecBenchmark {
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"PNG", "RAW", "RAW_DEFLATE"})
+    public ImageCodec codec;
+
+    private BufferedImage image;
+    private ByteArrayOutputStream out;
+    private byte[] frame;
+    private BufferPool pool;
+    private FrameOutputStream message;
+    private ByteBuffer directFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = BenchmarkImages.photo(size, size, 2);
+        out = new ByteArrayOutputStream(size * size * 4);
+        Common.send(out, image, codec);
+        frame = out.toByteArray();
+        pool = new BufferPool();
+        message = new FrameOutputStream(Common.FRAME_HEADER_LENGTH, pool);
+        directFrame = ByteBuffer.allocateDirect(frame.length - 4);
+        directFrame.put(frame, 4, frame.length - 4).flip();
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        out.reset();
+        Common.send(out, image, codec);
+        return out.size();
+    }
+
+    @Benchmark
+    public BufferedImage receive() throws IOException {
+        return Common.receive(new ByteArrayInputStream(frame));
+    }
+
+    @Benchmark
+    public int encodePooled() throws IOException {
+        message.writeFrame(0, 0, 0, image, codec);
+        int length = message.toByteBuffers()[1].remaining();
+        message.reset();
+        return length;
+    }
+
+    @Benchmark
+    public BufferedImage decodeDirect() throws IOException {
+        return Common.decode(directFrame);
+    }
+}
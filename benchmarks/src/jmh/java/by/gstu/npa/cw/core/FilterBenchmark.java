@@ -0,0 +1,61 @@
+package by.gstu.npa.cw.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters of comparable reach: repeated small kernels against one summed-area pass, whose cost does not depend on
+ * the radius.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FilterBenchmark {
+
+    @Param({"2048"})
+    public int size;
+
+    @Param({"legacy:29:5", "box:14", "box:70", "box:400", "gaussian:8", "gaussian:40"})
+    public String filter;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private ExecutorService executor;
+    private BoxSmoother smoother;
+    private Filter parsedFilter;
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        smoother = new BoxSmoother(executor, threads);
+        parsedFilter = Filter.parse(filter);
+        pixels = BenchmarkImages.noise(size, size, 1).getRGB(0, 0, size, size, null, 0, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int[] apply() {
+        smoother.smooth(pixels, size, size, parsedFilter, 0, parsedFilter.getPassCount());
+        return pixels;
+    }
+}
@@ -0,0 +1,82 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.client.Client;
+import by.gstu.npa.cw.core.BenchmarkImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole {@link SocketSmoothManager#smoothImage} call against clients running in this process over loopback
+ * sockets, with the result cache disabled. Embedded workers are left out, so every tile goes through the clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoopbackBenchmark {
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"3", "29"})
+    public int kernelSize;
+
+    @Param({"1", "10"})
+    public int repeatCount;
+
+    @Param({"1", "4"})
+    public int clients;
+
+    @Param({"FULL", "EXCHANGE"})
+    public HaloMode haloMode;
+
+    private SocketSmoothManager smoothManager;
+    private final List<Client> workers = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private BufferedImage image;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        smoothManager = new SocketSmoothManager();
+        smoothManager.setResultCache(null);
+        smoothManager.setExecutionMode(ExecutionMode.REMOTE);
+        smoothManager.setHaloMode(haloMode);
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client("localhost", 1);
+            workers.add(client);
+            Thread thread = new Thread(client::start, "loopback-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        smoothManager.awaitClients(clients).join();
+        image = BenchmarkImages.noise(size, size, 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        smoothManager.close();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        workers.forEach(Client::close);
+    }
+
+    @Benchmark
+    public BufferedImage smoothImage() {
+        return smoothManager.smoothImage(image, clients, kernelSize, repeatCount);
+    }
+}
@@ -0,0 +1,100 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.BenchmarkImages;
+import by.gstu.npa.cw.core.BoxSmoother;
+import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.ImageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting an image into haloed strips with {@link SocketSmoothManager#smoothMap} and merging the smoothed strips back
+ * with {@link SocketSmoothManager#smoothReduce}, and encoding the strips as {@link ImageCodec#RAW} frames, either cut
+ * out first or straight from the source image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SplitMergeBenchmark {
+
+    @Param({"1024", "4096"})
+    public int size;
+
+    @Param({"3", "29"})
+    public int kernelSize;
+
+    @Param({"1", "10"})
+    public int repeatCount;
+
+    @Param({"2", "8", "32"})
+    public int strips;
+
+    private BufferedImage image;
+    private BufferedImage smoothed;
+    private List<Tile> tiles;
+    private List<BufferedImage> parts;
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = BenchmarkImages.noise(size, size, 3);
+        smoothed = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        tiles = Tile.strips(size, size, strips,
+                repeatCount * BoxSmoother.reachBefore(kernelSize), repeatCount * BoxSmoother.reachAfter(kernelSize));
+        parts = new ArrayList<>(tiles.size());
+        for (Tile tile : tiles) {
+            parts.add(SocketSmoothManager.smoothMap(image, tile));
+        }
+        out = new ByteArrayOutputStream(size * size * 4);
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        for (Tile tile : tiles) {
+            blackhole.consume(SocketSmoothManager.smoothMap(image, tile));
+        }
+    }
+
+    @Benchmark
+    public BufferedImage merge() {
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = tiles.get(i);
+            SocketSmoothManager.smoothReduce(smoothed, tile, parts.get(i), tile.getHaloBeforeX(), 0);
+        }
+        return smoothed;
+    }
+
+    @Benchmark
+    public int splitThenEncode() throws IOException {
+        out.reset();
+        for (Tile tile : tiles) {
+            Common.send(out, 0, tile.getIndex(), SocketSmoothManager.smoothMap(image, tile), ImageCodec.RAW);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeRegions() throws IOException {
+        out.reset();
+        for (Tile tile : tiles) {
+            Common.send(out, 0, tile.getIndex(), image,
+                    tile.getHaloX(), tile.getHaloY(), tile.getHaloWidth(), tile.getHaloHeight(), ImageCodec.RAW);
+        }
+        return out.size();
+    }
+}
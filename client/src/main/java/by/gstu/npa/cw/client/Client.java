@@ -1,19 +1,39 @@
 package by.gstu.npa.cw.client;
 
+import by.gstu.npa.cw.core.BoxSmoother;
+import by.gstu.npa.cw.core.BufferPool;
 import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.FrameInputStream;
+import by.gstu.npa.cw.core.FrameOutputStream;
+import by.gstu.npa.cw.core.ImageCodec;
+import by.gstu.npa.cw.core.IntRaster;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Client implements AutoCloseable {
 
     private static final Logger LOGGER = LogManager.getLogger(Client.class);
 
+    private static final int DEFAULT_SLOTS = 2;
+
     public static void main(String[] args) {
         System.out.println("Enter '-h' or '-help' to get information about the arguments.");
         Client client = null;
@@ -21,9 +41,15 @@ public final class Client implements AutoCloseable {
             if (args.length == 1) {
                 if ("-h".equals(args[0]) || "-help".equals(args[0])) {
                     System.out.println("The first argument is the server address, by default 'localhost'.");
+                    System.out.println("The second argument is the number of smoothing threads, by default the number of available processors.");
+                    System.out.println("The third argument is the number of tiles smoothed at once, by default " + DEFAULT_SLOTS + ".");
                     return;
                 }
                 client = new Client(args[0]);
+            } else if (args.length == 2) {
+                client = new Client(args[0], Integer.parseInt(args[1]));
+            } else if (args.length >= 3) {
+                client = new Client(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
             } else {
                 client = new Client();
             }
@@ -37,11 +63,65 @@ public final class Client implements AutoCloseable {
         }
     }
 
-    private final Socket socket;
+    private final SocketChannel channel;
+    private final BufferPool bufferPool = new BufferPool();
+    private final FrameInputStream inputStream;
+    private final OutputStream outputStream;
+    private final Object writeLock = new Object();
+    private final FrameOutputStream response = new FrameOutputStream(Common.FRAME_HEADER_LENGTH, bufferPool);
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService smoothingPool;
+    private final ExecutorService slotPool;
+    private final ThreadLocal<BoxSmoother> smoothers;
+    private final ImageCodec codec;
+
+    /**
+     * Connects to the server and offers it {@code slots} tiles at once. Requests are read while earlier ones are
+     * smoothed, each slot smooths on its own {@link BoxSmoother} sharing the {@code threads} smoothing threads, and
+     * results are sent as soon as they are ready, in any order.
+     */
+    public Client(String host, int threads, int slots) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        if (slots < 1 || slots > Common.MAX_SLOTS) {
+            throw new IllegalArgumentException("Slot count must be between 1 and " + Common.MAX_SLOTS + ": " + slots);
+        }
+        channel = SocketChannel.open(new InetSocketAddress(host, Common.PORT));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            inputStream = new FrameInputStream(channel, bufferPool);
+            outputStream = new BufferedOutputStream(Channels.newOutputStream(channel), 64);
+            Common.sendHello(outputStream, Arrays.asList(ImageCodec.values()), slots);
+            codec = Common.receiveWelcome(inputStream);
+        } catch (IOException e) {
+            channel.close();
+            heartbeat.shutdown();
+            throw e;
+        }
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeat, Common.HEARTBEAT_INTERVAL, Common.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        smoothingPool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        smoothers = ThreadLocal.withInitial(() -> new BoxSmoother(smoothingPool, threads));
+        AtomicInteger slotNumber = new AtomicInteger();
+        slotPool = Executors.newFixedThreadPool(slots, runnable -> {
+            Thread thread = new Thread(runnable, "slot-" + slotNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.info("Client has started execution with " + slots + " slot(s) on " + threads + " smoothing thread(s)"
+                + (smoothers.get().isPackedLanes() ? " on packed lanes" : "") + ", codec " + codec);
+    }
+
+    public Client(String host, int threads) throws IOException {
+        this(host, threads, DEFAULT_SLOTS);
+    }
 
     public Client(String host) throws IOException {
-        socket = new Socket(host, Common.PORT);
-        LOGGER.info("Client has started execution");
+        this(host, Runtime.getRuntime().availableProcessors());
     }
 
     public Client() throws IOException {
@@ -50,16 +130,21 @@ public final class Client implements AutoCloseable {
 
     public void start() {
         try {
-            InputStream inputStream = socket.getInputStream();
-            while (!socket.isClosed()) {
+            while (channel.isOpen()) {
                 int status = inputStream.read();
                 if (status == -1) {
-                    socket.close();
+                    channel.close();
                     break;
-                } else if (status == 0) {
+                } else if (status == Common.STATUS_PING) {
+                    continue;
+                } else if (status == Common.STATUS_EXCHANGE) {
+                    receiveExchangeAndSend();
+                    continue;
+                } else if (status == Common.STATUS_ABORT) {
+                    acknowledgeAbort(Common.getIntFromSocket(inputStream));
                     continue;
                 }
-                receiveAndSend(inputStream);
+                receiveAndSend();
             }
             LOGGER.info("Connection to the server is closed");
         } catch (IOException e) {
@@ -67,135 +152,232 @@ public final class Client implements AutoCloseable {
         }
     }
 
-    private void receiveAndSend(InputStream inputStream) throws IOException {
-        int kernelSize = 0;
-        while (kernelSize == 0) {
-            kernelSize = Common.getIntFromSocket(inputStream);
-        }
-        int repeatCount = Common.getIntFromSocket(inputStream);
-        BufferedImage image = Common.receive(inputStream);
-        if (kernelSize < 3 || kernelSize > 29 || kernelSize % 2 != 1) {
-            kernelSize = 3;
+    private void receiveAndSend() throws IOException {
+        int jobId = Common.getIntFromSocket(inputStream);
+        int tileId = Common.getIntFromSocket(inputStream);
+        Filter filter = Common.getFilter(inputStream);
+        int bandRows = Common.getIntFromSocket(inputStream);
+        BufferedImage image = inputStream.receive();
+        slotPool.execute(() -> {
+            try {
+                processRequest(jobId, tileId, filter, bandRows, image);
+            } catch (IOException | RuntimeException e) {
+                if (channel.isOpen()) {
+                    LOGGER.fatal("Job " + jobId + ", tile " + tileId + " has failed, the connection is closed", e);
+                    closeChannel();
+                }
+            }
+        });
+    }
+
+    private void receiveExchangeAndSend() throws IOException {
+        int jobId = Common.getIntFromSocket(inputStream);
+        Filter filter = Common.getFilter(inputStream);
+        int haloLeft = Common.getIntFromSocket(inputStream);
+        int haloRight = Common.getIntFromSocket(inputStream);
+        int sendLeft = Common.getIntFromSocket(inputStream);
+        int sendRight = Common.getIntFromSocket(inputStream);
+        int bandRows = Common.getIntFromSocket(inputStream);
+        BufferedImage image = inputStream.receive();
+        processExchange(jobId, filter, haloLeft, haloRight, sendLeft, sendRight, bandRows, image);
+    }
+
+    private void processExchange(int jobId, Filter filter, int haloLeft, int haloRight, int sendLeft, int sendRight,
+                                 int bandRows, BufferedImage image) throws IOException {
+        LOGGER.info("+++Request for exchange smoothing++");
+        LOGGER.info("Job: " + jobId + ", filter: " + filter);
+        LOGGER.info("Halo: " + haloLeft + "/" + haloRight + ", borders: " + sendLeft + "/" + sendRight);
+        LOGGER.info("Image: " + image);
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage smoothed = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = IntRaster.pixels(smoothed);
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+        int passCount = filter.getPassCount();
+        BoxSmoother smoother = smoothers.get();
+        long computeTime = 0;
+        for (int pass = 1; pass <= passCount; pass++) {
+            if (pass == passCount) {
+                BandSender core = new BandSender(jobId, passCount, smoothed, haloLeft, width - haloLeft - haloRight,
+                        bandRows, computeTime, smoother);
+                core.smooth(filter, pass - 1, pass);
+                break;
+            }
+            long startedAt = System.nanoTime();
+            smoother.smooth(pixels, width, height, filter, pass - 1, pass);
+            computeTime += System.nanoTime() - startedAt;
+            if (sendLeft + sendRight > 0) {
+                BufferedImage borders = new BufferedImage(sendLeft + sendRight, height, BufferedImage.TYPE_INT_RGB);
+                if (sendLeft > 0) {
+                    borders.setRGB(0, 0, sendLeft, height, pixels, haloLeft, width);
+                }
+                if (sendRight > 0) {
+                    borders.setRGB(sendLeft, 0, sendRight, height, pixels, width - haloRight - sendRight, width);
+                }
+                send(jobId, pass, computeTime, borders);
+                computeTime = 0;
+            }
+            if (haloLeft + haloRight > 0) {
+                int status = nextStatus();
+                if (status == Common.STATUS_ABORT) {
+                    acknowledgeAbort(Common.getIntFromSocket(inputStream));
+                    return;
+                } else if (status != Common.STATUS_HALO) {
+                    throw new ProtocolException("Expected the halo of pass " + pass + ", got status " + status);
+                }
+                BufferedImage halo = inputStream.receive();
+                if (haloLeft > 0) {
+                    halo.getRGB(0, 0, haloLeft, height, pixels, 0, width);
+                }
+                if (haloRight > 0) {
+                    halo.getRGB(haloLeft, 0, haloRight, height, pixels, width - haloRight, width);
+                }
+            }
         }
-        if (repeatCount < 1 || repeatCount > 20) {
-            repeatCount = 1;
+        LOGGER.info("+Exchange request has been processed");
+    }
+
+    private int nextStatus() throws IOException {
+        int status;
+        do {
+            status = inputStream.read();
+        } while (status == Common.STATUS_PING);
+        if (status == -1) {
+            throw new EOFException();
         }
-        processRequest(kernelSize, repeatCount, image);
+        return status;
+    }
+
+    /**
+     * Tells the server that the job is dropped; frames of the job that were already sent arrive before this one.
+     */
+    private void acknowledgeAbort(int jobId) throws IOException {
+        LOGGER.info("Job " + jobId + " is aborted by the server");
+        send(jobId, Common.ABORTED_TAG, 0, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
     }
 
-    private void processRequest(int kernelSize, int repeatCount, BufferedImage image) throws IOException {
+    private void processRequest(int jobId, int tileId, Filter filter, int bandRows, BufferedImage image) throws IOException {
         LOGGER.info("+++++++Request for smoothing+++++++");
         LOGGER.info("---------Request parameters--------");
-        LOGGER.info("Kernel size: " + kernelSize);
-        LOGGER.info("Repeat count: " + repeatCount);
+        LOGGER.info("Job: " + jobId + ", tile: " + tileId);
+        LOGGER.info("Filter: " + filter);
         LOGGER.info("Image: " + image);
         LOGGER.info("------Start of image smoothing-----");
-        image = smooth(image, kernelSize, repeatCount);
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage smoothed = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.getRGB(0, 0, width, height, IntRaster.pixels(smoothed), 0, width);
+        BandSender sender = new BandSender(jobId, tileId, smoothed, 0, width, bandRows, 0, smoothers.get());
+        sender.smooth(filter, 0, filter.getPassCount());
         LOGGER.info("---------Image is smoothed---------");
-        LOGGER.info("----------Sending response---------");
-        Common.send(socket.getOutputStream(), image);
-        LOGGER.info("-----------Response sent-----------");
+        LOGGER.info("Compute time: " + TimeUnit.NANOSECONDS.toMillis(sender.totalComputeTime) + " ms, sent in "
+                + Common.bandCount(height, bandRows) + " frame(s)");
         LOGGER.info("++++Request has been processed+++++");
     }
 
-    @Override
-    public void close() {
-        try {
-            socket.close();
-            LOGGER.info("Client has completed execution");
-        } catch (IOException e) {
-            LOGGER.error(e);
-        }
+    private void send(int jobId, int tileId, long computeTime, BufferedImage image) throws IOException {
+        send(jobId, tileId, computeTime, image, 0, 0, image.getWidth(), image.getHeight());
     }
 
-    private static BufferedImage smooth(BufferedImage image, int kernelSize, int repeatCount) {
-        for (int i = 0; i < repeatCount; i++) {
-            image = smoothHorizontally(smoothVertically(image, kernelSize), kernelSize);
-        }
-        return image;
-    }
-
-    private static BufferedImage smoothHorizontally(BufferedImage inputImage, int kernelSize) {
-        int width = inputImage.getWidth(), height = inputImage.getHeight();
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Kernel kernel = new Kernel(kernelSize);
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                kernel.reset();
-                for (int k = 0; (k < kernel.getCenter()) && (j - k >= 0); k++) {
-                    kernel.add(inputImage.getRGB(i, j - k));
-                }
-                for (int k = kernel.getCenter(), k2 = 0; (k < kernel.getSize()) && (j + k2 < height); k++, k2++) {
-                    kernel.add(inputImage.getRGB(i, j + k2));
-                }
-                outputImage.setRGB(i, j, kernel.getMeanRgb());
-            }
-        }
-        return outputImage;
-    }
-
-    private static BufferedImage smoothVertically(final BufferedImage inputImage, int kernelSize) {
-        final int width = inputImage.getWidth(), height = inputImage.getHeight();
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Kernel kernel = new Kernel(kernelSize);
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                kernel.reset();
-                for (int k = 0; (k < kernel.getCenter()) && (i - k >= 0); k++) {
-                    kernel.add(inputImage.getRGB(i - k, j));
-                }
-                for (int k = kernel.getCenter(), k2 = 0; (k < kernel.getSize()) && (i + k2 < width); k++, k2++) {
-                    kernel.add(inputImage.getRGB(i + k2, j));
-                }
-                outputImage.setRGB(i, j, kernel.getMeanRgb());
+    private void send(int jobId, int tileId, long computeTime, BufferedImage image, int x, int y, int width, int height)
+            throws IOException {
+        int computeMicros = (int) Math.min(TimeUnit.NANOSECONDS.toMicros(computeTime), Integer.MAX_VALUE);
+        synchronized (writeLock) {
+            try {
+                response.writeFrame(jobId, tileId, computeMicros, image, x, y, width, height, codec);
+                response.writeFully(channel);
+            } finally {
+                response.reset();
             }
         }
-        return outputImage;
     }
 
+    /**
+     * Smooths an image in place and sends the columns {@code x} to {@code x + width} of its final rows while the rest
+     * is smoothed, {@code bandRows} rows a frame, so the server can merge and show them early. Every frame carries the
+     * compute time since the previous one.
+     */
+    private final class BandSender implements BoxSmoother.BandListener {
 
-    private static final class Kernel {
-        private final int size;
-        private final int center;
-        private int count;
-        private int red;
-        private int green;
-        private int blue;
-
-        private Kernel(int size) {
-            this.size = size;
-            this.center = (size % 2 == 0) ? (size / 2 - 1) : (size / 2 + 1);
-        }
-
-        public void reset() {
-            count = red = green = blue = 0;
-        }
+        private final int jobId;
+        private final int tileId;
+        private final BufferedImage image;
+        private final int x;
+        private final int width;
+        private final int bandRows;
+        private final BoxSmoother smoother;
+        private long computeTime;
+        private long totalComputeTime;
+        private long startedAt;
+        private int sentRows;
 
-        public int getSize() {
-            return size;
+        BandSender(int jobId, int tileId, BufferedImage image, int x, int width, int bandRows, long computeTime,
+                   BoxSmoother smoother) {
+            this.jobId = jobId;
+            this.tileId = tileId;
+            this.image = image;
+            this.x = x;
+            this.width = width;
+            this.bandRows = (bandRows > 0) ? bandRows : image.getHeight();
+            this.computeTime = computeTime;
+            this.totalComputeTime = computeTime;
+            this.smoother = smoother;
         }
 
-        public int getCenter() {
-            return center;
+        void smooth(Filter filter, int fromPass, int toPass) throws IOException {
+            startedAt = System.nanoTime();
+            try {
+                smoother.smooth(IntRaster.pixels(image), image.getWidth(), image.getHeight(), filter, fromPass, toPass,
+                        bandRows, this);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
 
-        public void add(Color color) {
-            red += color.getRed();
-            green += color.getGreen();
-            blue += color.getBlue();
-            count++;
+        @Override
+        public void rowsDone(int fromRow, int toRow) {
+            long now = System.nanoTime();
+            computeTime += now - startedAt;
+            totalComputeTime += now - startedAt;
+            try {
+                while (toRow - sentRows >= bandRows || (toRow == image.getHeight() && sentRows < toRow)) {
+                    int rows = Math.min(bandRows, toRow - sentRows);
+                    send(jobId, tileId, computeTime, image, x, sentRows, width, rows);
+                    computeTime = 0;
+                    sentRows += rows;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            startedAt = System.nanoTime();
         }
+    }
 
-        public void add(int rgb) {
-            add(new Color(rgb));
+    private void sendHeartbeat() {
+        try {
+            synchronized (writeLock) {
+                Common.sendHeartbeat(outputStream);
+            }
+        } catch (IOException e) {
+            LOGGER.info("Heartbeat has failed: " + e.getMessage());
+            heartbeat.shutdown();
         }
+    }
 
-        public Color getMeanColor() {
-            return new Color(red / count, green / count, blue / count);
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error(e);
         }
+    }
 
-        public int getMeanRgb() {
-            return getMeanColor().getRGB();
+    @Override
+    public void close() {
+        heartbeat.shutdown();
+        slotPool.shutdown();
+        if (smoothingPool != null) {
+            smoothingPool.shutdown();
         }
+        closeChannel();
+        LOGGER.info("Client has completed execution");
     }
 }
@@ -0,0 +1,587 @@
+package by.gstu.npa.cw.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Box smoothing over packed {@code 0xAARRGGBB} pixels. Each pass averages the window {@code [x - before, x + after]},
+ * clipped to the image, with the pixel under the window counted twice when both halves of the kernel are non-empty.
+ * The scratch buffers grow to the largest image seen and are reused, so a pass allocates nothing.
+ * <p>
+ * With an executor and a parallelism above one, the row pass is split into row bands and the column pass into column
+ * bands; every band of a pass finishes before the next pass starts. Bands never share output pixels, so the result is
+ * the same as the sequential one.
+ * <p>
+ * With packed lanes enabled, by the {@code smoothing.packedLanes} property or the constructor, the box kernel keeps
+ * the red, green and blue sums of a window in 21-bit lanes of a single {@code long}, so adding or dropping a pixel is
+ * one addition, and divides by the window size with a multiplication by a precomputed reciprocal. The result is
+ * identical to the scalar passes, which remain the default and handle windows too large for the lanes.
+ * <p>
+ * Besides its own kernel it runs any {@link Filter}, and provides the summed-area box pass the other filters are made
+ * of.
+ */
+public final class BoxSmoother {
+
+    private static final int OPAQUE = 0xFF000000;
+
+    /**
+     * Largest window, counting the centre twice, whose channel sums fit a 21-bit lane and whose reciprocal gives
+     * exact quotients.
+     */
+    static final int MAX_PACKED_WINDOW = 4095;
+
+    private static final long LANE = (1L << 21) - 1;
+
+    /**
+     * Told about rows of an image that are final, in order and without gaps, while the rest is still being smoothed.
+     */
+    public interface BandListener {
+
+        void rowsDone(int fromRow, int toRow);
+    }
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final boolean packedLanes;
+    private int[] buffer = new int[0];
+    private int[] sums = new int[0];
+    private long[] packedSums = new long[0];
+    private int[] redTable = new int[0];
+    private int[] greenTable = new int[0];
+    private int[] blueTable = new int[0];
+
+    public BoxSmoother() {
+        this(null, 1);
+    }
+
+    public BoxSmoother(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, Boolean.getBoolean("smoothing.packedLanes"));
+    }
+
+    public BoxSmoother(ExecutorService executor, int parallelism, boolean packedLanes) {
+        if (parallelism > 1 && executor == null) {
+            throw new IllegalArgumentException("An executor is required for parallel smoothing");
+        }
+        this.executor = executor;
+        this.parallelism = Math.max(parallelism, 1);
+        this.packedLanes = packedLanes;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isPackedLanes() {
+        return packedLanes;
+    }
+
+    public static int reachBefore(int kernelSize) {
+        return new Window(kernelSize).before;
+    }
+
+    public static int reachAfter(int kernelSize) {
+        return new Window(kernelSize).after;
+    }
+
+    public BufferedImage smooth(final BufferedImage image, final int kernelSize, final int repeatCount) {
+        return smooth(image, Filter.legacy(kernelSize, repeatCount));
+    }
+
+    public BufferedImage smooth(final BufferedImage image, final Filter filter) {
+        int width = image.getWidth(), height = image.getHeight();
+        BufferedImage smoothed = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) smoothed.getRaster().getDataBuffer()).getData();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB) {
+            image.getRaster().getDataElements(0, 0, width, height, pixels);
+        } else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        smooth(pixels, width, height, filter, 0, filter.getPassCount());
+        return smoothed;
+    }
+
+    /**
+     * Runs passes {@code fromPass} (inclusive) to {@code toPass} (exclusive) of the filter.
+     */
+    public void smooth(final int[] pixels, final int width, final int height, final Filter filter, final int fromPass, final int toPass) {
+        filter.apply(this, pixels, width, height, fromPass, toPass, 0, null);
+    }
+
+    /**
+     * Runs passes {@code fromPass} to {@code toPass} of the filter and tells the listener about rows as soon as they
+     * are final, about {@code bandRows} at a time, so they can be sent while the rest of the image is smoothed.
+     * Every row is reported exactly once, in order.
+     */
+    public void smooth(final int[] pixels, final int width, final int height, final Filter filter, final int fromPass,
+                       final int toPass, final int bandRows, final BandListener listener) {
+        if (listener == null) {
+            smooth(pixels, width, height, filter, fromPass, toPass);
+            return;
+        }
+        final int[] reported = {0};
+        filter.apply(this, pixels, width, height, fromPass, toPass, bandRows, (fromRow, toRow) -> {
+            reported[0] = toRow;
+            listener.rowsDone(fromRow, toRow);
+        });
+        if (reported[0] < height) {
+            listener.rowsDone(reported[0], height);
+        }
+    }
+
+    public void smooth(final int[] pixels, final int width, final int height, final int kernelSize, final int repeatCount) {
+        smooth(pixels, width, height, kernelSize, repeatCount, 0, null);
+    }
+
+    /**
+     * Runs {@code repeatCount} passes of the box kernel. With a listener, the column half of the last pass runs
+     * {@code bandRows} rows at a time and every band is reported as soon as it is final.
+     */
+    public void smooth(final int[] pixels, final int width, final int height, final int kernelSize, final int repeatCount,
+                       final int bandRows, final BandListener listener) {
+        ensureCapacity(width, height);
+        final Window window = new Window(kernelSize);
+        final long[] reciprocals = packedLanes ? window.reciprocals() : null;
+        for (int i = 0; i < repeatCount; i++) {
+            rowPass(pixels, buffer, width, height, window, reciprocals);
+            if (i < repeatCount - 1 || listener == null || bandRows <= 0) {
+                columnPass(buffer, pixels, width, height, 0, height, window, reciprocals);
+                continue;
+            }
+            for (int from = 0; from < height; from += bandRows) {
+                int to = Math.min(from + bandRows, height);
+                columnPass(buffer, pixels, width, height, from, to, window, reciprocals);
+                listener.rowsDone(from, to);
+            }
+            return;
+        }
+        if (listener != null) {
+            listener.rowsDone(0, height);
+        }
+    }
+
+    private void rowPass(final int[] src, final int[] dst, final int width, final int height, final Window window,
+                         final long[] reciprocals) {
+        int bands = Math.min(parallelism, height);
+        if (bands <= 1) {
+            if (reciprocals != null) {
+                smoothRowsPacked(src, dst, width, 0, height, window, reciprocals);
+            } else {
+                smoothRows(src, dst, width, 0, height, window);
+            }
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int from = height * band / bands, to = height * (band + 1) / bands;
+            tasks.add(() -> {
+                if (reciprocals != null) {
+                    smoothRowsPacked(src, dst, width, from, to, window, reciprocals);
+                } else {
+                    smoothRows(src, dst, width, from, to, window);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    private void columnPass(final int[] src, final int[] dst, final int width, final int height, final int fromRow,
+                            final int toRow, final Window window, final long[] reciprocals) {
+        final int[] sums = this.sums;
+        final long[] packedSums = this.packedSums;
+        int bands = Math.min(parallelism, width);
+        if (bands <= 1) {
+            if (reciprocals != null) {
+                smoothColumnsPacked(src, dst, width, height, 0, width, fromRow, toRow, window, reciprocals, packedSums);
+            } else {
+                smoothColumns(src, dst, width, height, 0, width, fromRow, toRow, window, sums);
+            }
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int from = width * band / bands, to = width * (band + 1) / bands;
+            tasks.add(() -> {
+                if (reciprocals != null) {
+                    smoothColumnsPacked(src, dst, width, height, from, to, fromRow, toRow, window, reciprocals, packedSums);
+                } else {
+                    smoothColumns(src, dst, width, height, from, to, fromRow, toRow, window, sums);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Replaces every pixel with the rounded mean of the {@code (2 * radius + 1)} square around it, clipped to the
+     * image. Window sums are differences of four entries of a per-channel summed-area table; the table wraps around
+     * in 32 bits, which leaves the differences exact as long as a window sum fits in 32 unsigned bits, that is for
+     * windows of up to 4095 x 4095 pixels.
+     */
+    void integralBox(final int[] pixels, final int width, final int height, final int radius) {
+        integralBox(pixels, width, height, radius, 0, null);
+    }
+
+    /**
+     * Runs {@link #integralBox(int[], int, int, int)}; with a listener, the means are taken {@code bandRows} rows at a
+     * time once the table is complete and every band is reported as soon as it is written.
+     */
+    void integralBox(final int[] pixels, final int width, final int height, final int radius, final int bandRows,
+                     final BandListener listener) {
+        if (radius == 0) {
+            if (listener != null) {
+                listener.rowsDone(0, height);
+            }
+            return;
+        }
+        final int stride = width + 1;
+        if (redTable.length < stride * (height + 1)) {
+            redTable = new int[stride * (height + 1)];
+            greenTable = new int[stride * (height + 1)];
+            blueTable = new int[stride * (height + 1)];
+        }
+        final int[] red = redTable, green = greenTable, blue = blueTable;
+        Arrays.fill(red, 0, stride, 0);
+        Arrays.fill(green, 0, stride, 0);
+        Arrays.fill(blue, 0, stride, 0);
+        int rowBands = Math.min(parallelism, height), columnBands = Math.min(parallelism, width);
+        List<Callable<Void>> rowSums = new ArrayList<>(rowBands);
+        List<Callable<Void>> columnSums = new ArrayList<>(columnBands);
+        List<Callable<Void>> means = new ArrayList<>(rowBands);
+        for (int band = 0; band < rowBands; band++) {
+            final int from = height * band / rowBands, to = height * (band + 1) / rowBands;
+            rowSums.add(() -> {
+                sumRows(pixels, width, from, to, red, green, blue);
+                return null;
+            });
+            means.add(() -> {
+                boxMeans(pixels, width, height, from, to, radius, red, green, blue);
+                return null;
+            });
+        }
+        for (int band = 0; band < columnBands; band++) {
+            final int from = width * band / columnBands, to = width * (band + 1) / columnBands;
+            columnSums.add(() -> {
+                sumColumns(width, height, from, to, red, green, blue);
+                return null;
+            });
+        }
+        boolean banded = listener != null && bandRows > 0;
+        if (rowBands <= 1 && columnBands <= 1) {
+            sumRows(pixels, width, 0, height, red, green, blue);
+            sumColumns(width, height, 0, width, red, green, blue);
+            if (!banded) {
+                boxMeans(pixels, width, height, 0, height, radius, red, green, blue);
+            }
+        } else {
+            invokeAll(rowSums);
+            invokeAll(columnSums);
+            if (!banded) {
+                invokeAll(means);
+            }
+        }
+        if (!banded) {
+            if (listener != null) {
+                listener.rowsDone(0, height);
+            }
+            return;
+        }
+        for (int from = 0; from < height; from += bandRows) {
+            final int to = Math.min(from + bandRows, height), bands = Math.min(rowBands, to - from);
+            if (bands <= 1) {
+                boxMeans(pixels, width, height, from, to, radius, red, green, blue);
+            } else {
+                List<Callable<Void>> bandMeans = new ArrayList<>(bands);
+                for (int band = 0; band < bands; band++) {
+                    final int first = from + (to - from) * band / bands, last = from + (to - from) * (band + 1) / bands;
+                    bandMeans.add(() -> {
+                        boxMeans(pixels, width, height, first, last, radius, red, green, blue);
+                        return null;
+                    });
+                }
+                invokeAll(bandMeans);
+            }
+            listener.rowsDone(from, to);
+        }
+    }
+
+    private static void sumRows(int[] pixels, int width, int fromRow, int toRow, int[] red, int[] green, int[] blue) {
+        final int stride = width + 1;
+        for (int j = fromRow; j < toRow; j++) {
+            int row = j * width, entry = (j + 1) * stride;
+            int r = 0, g = 0, b = 0;
+            red[entry] = green[entry] = blue[entry] = 0;
+            for (int i = 0; i < width; i++) {
+                int rgb = pixels[row + i];
+                r += (rgb >> 16) & 0xFF;
+                g += (rgb >> 8) & 0xFF;
+                b += rgb & 0xFF;
+                red[entry + i + 1] = r;
+                green[entry + i + 1] = g;
+                blue[entry + i + 1] = b;
+            }
+        }
+    }
+
+    private static void sumColumns(int width, int height, int fromColumn, int toColumn, int[] red, int[] green, int[] blue) {
+        final int stride = width + 1;
+        for (int j = 2; j <= height; j++) {
+            int entry = j * stride, above = entry - stride;
+            for (int i = fromColumn + 1; i <= toColumn; i++) {
+                red[entry + i] += red[above + i];
+                green[entry + i] += green[above + i];
+                blue[entry + i] += blue[above + i];
+            }
+        }
+    }
+
+    private static void boxMeans(int[] pixels, int width, int height, int fromRow, int toRow, int radius,
+                                 int[] red, int[] green, int[] blue) {
+        final int stride = width + 1;
+        for (int j = fromRow; j < toRow; j++) {
+            int top = Math.max(j - radius, 0) * stride, bottom = (Math.min(j + radius, height - 1) + 1) * stride;
+            int rows = (bottom - top) / stride, row = j * width;
+            for (int i = 0; i < width; i++) {
+                int left = Math.max(i - radius, 0), right = Math.min(i + radius, width - 1) + 1;
+                long count = (long) rows * (right - left), half = count / 2;
+                long r = Integer.toUnsignedLong(red[bottom + right] - red[top + right] - red[bottom + left] + red[top + left]);
+                long g = Integer.toUnsignedLong(green[bottom + right] - green[top + right] - green[bottom + left] + green[top + left]);
+                long b = Integer.toUnsignedLong(blue[bottom + right] - blue[top + right] - blue[bottom + left] + blue[top + left]);
+                pixels[row + i] = OPAQUE | (int) ((r + half) / count) << 16 | (int) ((g + half) / count) << 8 | (int) ((b + half) / count);
+            }
+        }
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Smoothing was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Smoothing band has failed", e.getCause());
+        }
+    }
+
+    private void ensureCapacity(int width, int height) {
+        if (buffer.length < width * height) {
+            buffer = new int[width * height];
+        }
+        if (sums.length < width * 3) {
+            sums = new int[width * 3];
+        }
+        if (packedLanes && packedSums.length < width) {
+            packedSums = new long[width];
+        }
+    }
+
+    static void smoothRows(final int[] src, final int[] dst, final int width, final int fromRow, final int toRow, final Window window) {
+        final int before = window.before, after = window.after, twice = window.centerTwice ? 1 : 0;
+        for (int j = fromRow; j < toRow; j++) {
+            final int row = j * width;
+            int red = 0, green = 0, blue = 0, count = 0;
+            for (int k = 0; (k < after) && (k < width); k++) {
+                int rgb = src[row + k];
+                red += (rgb >> 16) & 0xFF;
+                green += (rgb >> 8) & 0xFF;
+                blue += rgb & 0xFF;
+                count++;
+            }
+            for (int i = 0; i < width; i++) {
+                if (i + after < width) {
+                    int rgb = src[row + i + after];
+                    red += (rgb >> 16) & 0xFF;
+                    green += (rgb >> 8) & 0xFF;
+                    blue += rgb & 0xFF;
+                    count++;
+                }
+                if (i - before - 1 >= 0) {
+                    int rgb = src[row + i - before - 1];
+                    red -= (rgb >> 16) & 0xFF;
+                    green -= (rgb >> 8) & 0xFF;
+                    blue -= rgb & 0xFF;
+                    count--;
+                }
+                int center = src[row + i] & -twice;
+                int total = count + twice;
+                dst[row + i] = OPAQUE
+                        | (((red + ((center >> 16) & 0xFF)) / total) << 16)
+                        | (((green + ((center >> 8) & 0xFF)) / total) << 8)
+                        | ((blue + (center & 0xFF)) / total);
+            }
+        }
+    }
+
+    /**
+     * Smooths rows {@code fromRow} to {@code toRow} of the columns; the window starts out holding the rows the first
+     * step slides past, so any row range gives the same pixels as the whole column.
+     */
+    static void smoothColumns(final int[] src, final int[] dst, final int width, final int height,
+                              final int fromColumn, final int toColumn, final int fromRow, final int toRow,
+                              final Window window, final int[] sums) {
+        final int before = window.before, after = window.after, twice = window.centerTwice ? 1 : 0;
+        for (int i = fromColumn; i < toColumn; i++) {
+            sums[i * 3] = sums[i * 3 + 1] = sums[i * 3 + 2] = 0;
+        }
+        int count = 0;
+        for (int k = Math.max(fromRow - before - 1, 0); (k < fromRow + after) && (k < height); k++) {
+            addRow(src, k * width, fromColumn, toColumn, sums);
+            count++;
+        }
+        for (int j = fromRow; j < toRow; j++) {
+            final int added = (j + after < height) ? (j + after) * width : -1;
+            final int removed = (j - before - 1 >= 0) ? (j - before - 1) * width : -1;
+            if (added >= 0) {
+                addRow(src, added, fromColumn, toColumn, sums);
+                count++;
+            }
+            if (removed >= 0) {
+                removeRow(src, removed, fromColumn, toColumn, sums);
+                count--;
+            }
+            final int row = j * width, total = count + twice;
+            for (int i = fromColumn; i < toColumn; i++) {
+                int center = src[row + i] & -twice;
+                dst[row + i] = OPAQUE
+                        | (((sums[i * 3] + ((center >> 16) & 0xFF)) / total) << 16)
+                        | (((sums[i * 3 + 1] + ((center >> 8) & 0xFF)) / total) << 8)
+                        | ((sums[i * 3 + 2] + (center & 0xFF)) / total);
+            }
+        }
+    }
+
+    private static void addRow(int[] src, int row, int fromColumn, int toColumn, int[] sums) {
+        for (int i = fromColumn; i < toColumn; i++) {
+            int rgb = src[row + i];
+            sums[i * 3] += (rgb >> 16) & 0xFF;
+            sums[i * 3 + 1] += (rgb >> 8) & 0xFF;
+            sums[i * 3 + 2] += rgb & 0xFF;
+        }
+    }
+
+    private static void removeRow(int[] src, int row, int fromColumn, int toColumn, int[] sums) {
+        for (int i = fromColumn; i < toColumn; i++) {
+            int rgb = src[row + i];
+            sums[i * 3] -= (rgb >> 16) & 0xFF;
+            sums[i * 3 + 1] -= (rgb >> 8) & 0xFF;
+            sums[i * 3 + 2] -= rgb & 0xFF;
+        }
+    }
+
+    static void smoothRowsPacked(final int[] src, final int[] dst, final int width, final int fromRow, final int toRow,
+                                 final Window window, final long[] reciprocals) {
+        final int before = window.before, after = window.after, twice = window.centerTwice ? 1 : 0;
+        final long centerMask = -(long) twice;
+        for (int j = fromRow; j < toRow; j++) {
+            final int row = j * width;
+            long sum = 0;
+            int count = 0;
+            for (int k = 0; (k < after) && (k < width); k++) {
+                sum += spread(src[row + k]);
+                count++;
+            }
+            for (int i = 0; i < width; i++) {
+                if (i + after < width) {
+                    sum += spread(src[row + i + after]);
+                    count++;
+                }
+                if (i - before - 1 >= 0) {
+                    sum -= spread(src[row + i - before - 1]);
+                    count--;
+                }
+                dst[row + i] = mean(sum + (spread(src[row + i]) & centerMask), reciprocals[count + twice]);
+            }
+        }
+    }
+
+    static void smoothColumnsPacked(final int[] src, final int[] dst, final int width, final int height,
+                                    final int fromColumn, final int toColumn, final int fromRow, final int toRow,
+                                    final Window window, final long[] reciprocals, final long[] sums) {
+        final int before = window.before, after = window.after, twice = window.centerTwice ? 1 : 0;
+        final long centerMask = -(long) twice;
+        Arrays.fill(sums, fromColumn, toColumn, 0);
+        int count = 0;
+        for (int k = Math.max(fromRow - before - 1, 0); (k < fromRow + after) && (k < height); k++) {
+            final int added = k * width;
+            for (int i = fromColumn; i < toColumn; i++) {
+                sums[i] += spread(src[added + i]);
+            }
+            count++;
+        }
+        for (int j = fromRow; j < toRow; j++) {
+            if (j + after < height) {
+                final int added = (j + after) * width;
+                for (int i = fromColumn; i < toColumn; i++) {
+                    sums[i] += spread(src[added + i]);
+                }
+                count++;
+            }
+            if (j - before - 1 >= 0) {
+                final int removed = (j - before - 1) * width;
+                for (int i = fromColumn; i < toColumn; i++) {
+                    sums[i] -= spread(src[removed + i]);
+                }
+                count--;
+            }
+            final int row = j * width;
+            final long reciprocal = reciprocals[count + twice];
+            for (int i = fromColumn; i < toColumn; i++) {
+                dst[row + i] = mean(sums[i] + (spread(src[row + i]) & centerMask), reciprocal);
+            }
+        }
+    }
+
+    /**
+     * Moves the red, green and blue bytes of a pixel to bits 42, 21 and 0.
+     */
+    private static long spread(int rgb) {
+        return ((long) (rgb & 0xFF0000) << 26) | ((long) (rgb & 0xFF00) << 13) | (rgb & 0xFF);
+    }
+
+    private static int mean(long sums, long reciprocal) {
+        return OPAQUE
+                | (int) (((sums >>> 42) * reciprocal) >>> 32) << 16
+                | (int) ((((sums >>> 21) & LANE) * reciprocal) >>> 32) << 8
+                | (int) (((sums & LANE) * reciprocal) >>> 32);
+    }
+
+    static final class Window {
+        final int before;
+        final int after;
+        final boolean centerTwice;
+
+        Window(int kernelSize) {
+            int center = (kernelSize % 2 == 0) ? (kernelSize / 2 - 1) : (kernelSize / 2 + 1);
+            this.before = Math.max(center - 1, 0);
+            this.after = Math.max(kernelSize - center - 1, 0);
+            this.centerTwice = (center > 0) && (kernelSize - center > 0);
+        }
+
+        /**
+         * Returns {@code ceil(2^32 / d)} for every window size {@code d}, with which {@code (n * r) >>> 32} equals
+         * {@code n / d} for all channel sums {@code n <= 255 * d}, or {@code null} if the window is too large for
+         * packed lanes.
+         */
+        long[] reciprocals() {
+            int largest = before + after + 2;
+            if (largest > MAX_PACKED_WINDOW) {
+                return null;
+            }
+            long[] reciprocals = new long[largest + 1];
+            for (int d = 1; d <= largest; d++) {
+                reciprocals[d] = ((1L << 32) + d - 1) / d;
+            }
+            return reciprocals;
+        }
+    }
+}
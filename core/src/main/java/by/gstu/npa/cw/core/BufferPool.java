@@ -0,0 +1,101 @@
+package by.gstu.npa.cw.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Direct buffers for frames, reused across transfers. A buffer is taken with {@link #acquire(int)} and given back with
+ * {@link #release(ByteBuffer)} once its contents are consumed. The smallest free buffer that fits is reused and new
+ * buffers are rounded up to a power of two, so once the pool has grown to the largest frames seen a transfer allocates
+ * nothing. Free buffers are kept up to a total capacity, evicting the smallest first.
+ */
+public final class BufferPool {
+
+    private static final int MIN_CAPACITY = 1 << 12;
+
+    private final long capacity;
+    private final List<ByteBuffer> free = new ArrayList<>();
+    private long pooledBytes;
+    private long allocations;
+    private long allocatedBytes;
+
+    /**
+     * Creates a pool that keeps up to {@code smoothing.bufferPoolMemory} MiB of free buffers, 64 by default.
+     */
+    public BufferPool() {
+        this(Long.getLong("smoothing.bufferPoolMemory", 64) << 20);
+    }
+
+    public BufferPool(long capacity) {
+        this.capacity = Math.max(capacity, 0);
+    }
+
+    /**
+     * Returns a cleared buffer of at least {@code size} bytes with its limit set to {@code size}.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Buffer size must not be negative: " + size);
+        }
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            for (int i = 0; i < free.size(); i++) {
+                if (free.get(i).capacity() >= size) {
+                    buffer = free.remove(i);
+                    pooledBytes -= buffer.capacity();
+                    break;
+                }
+            }
+            if (buffer == null) {
+                int rounded = (size <= MIN_CAPACITY) ? MIN_CAPACITY : Integer.highestOneBit(size - 1) << 1;
+                buffer = ByteBuffer.allocateDirect((rounded > 0) ? rounded : size);
+                allocations++;
+                allocatedBytes += buffer.capacity();
+            }
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back for reuse; the caller must not touch it afterwards. Buffers that were not acquired from a
+     * pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() > capacity) {
+            return;
+        }
+        synchronized (this) {
+            while (pooledBytes + buffer.capacity() > capacity && free.get(0).capacity() < buffer.capacity()) {
+                pooledBytes -= free.remove(0).capacity();
+            }
+            if (pooledBytes + buffer.capacity() > capacity) {
+                return;
+            }
+            int index = 0;
+            while (index < free.size() && free.get(index).capacity() < buffer.capacity()) {
+                index++;
+            }
+            free.add(index, buffer);
+            pooledBytes += buffer.capacity();
+        }
+    }
+
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return free.size() + " free buffer(s) of " + (pooledBytes >> 10) + " KiB, " + allocations + " allocation(s)";
+    }
+}
@@ -0,0 +1,52 @@
+package by.gstu.npa.cw.core;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a buffer of a {@link BufferPool}, moving to a buffer twice as large when it is full.
+ */
+final class ByteBufferOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    ByteBufferOutputStream(BufferPool pool, int size) {
+        this.pool = pool;
+        this.buffer = pool.acquire(size);
+        buffer.limit(buffer.capacity());
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Returns the written bytes between position and limit; the buffer now belongs to the caller.
+     */
+    ByteBuffer toByteBuffer() {
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        int size = (int) Math.min(Math.max((long) buffer.position() + length, 2L * buffer.capacity()), Integer.MAX_VALUE - 16);
+        ByteBuffer grown = pool.acquire(size);
+        grown.limit(grown.capacity());
+        buffer.flip();
+        grown.put(buffer);
+        pool.release(buffer);
+        buffer = grown;
+    }
+}
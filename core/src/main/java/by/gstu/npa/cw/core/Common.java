@@ -1,45 +1,233 @@
 package by.gstu.npa.cw.core;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class Common {
 
     public static final int PORT = 8383;
 
+    public static final int MAGIC = 0x534D5448;
+    public static final int PROTOCOL_VERSION = 10;
+    public static final int MAX_SLOTS = 256;
+
+    public static final int FRAME_HEADER_LENGTH = 13;
+    public static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE - 16;
+    private static final int FRAME_OVERHEAD = 1024;
+
+    public static final int STATUS_PING = 0;
+    public static final int STATUS_SMOOTH = 1;
+    public static final int STATUS_EXCHANGE = 2;
+    public static final int STATUS_HALO = 3;
+    public static final int STATUS_ABORT = 4;
+
+    /**
+     * Tile id of the frame a client answers {@link #STATUS_ABORT} with once it has dropped the job; every frame of the
+     * job it sent before precedes it.
+     */
+    public static final int ABORTED_TAG = -1;
+
+    public static final long HEARTBEAT_INTERVAL = 1000;
+    public static final long HEARTBEAT_TIMEOUT = 10_000;
+
+    /**
+     * Returns the longest frame, without its length prefix, that any codec writes for a {@code width x height} region:
+     * four bytes a pixel and one a row cover the raw pixels as well as the row filters and block overhead of PNG.
+     */
+    public static int maxFrameLength(int width, int height) {
+        long length = FRAME_HEADER_LENGTH + FRAME_OVERHEAD + (long) width * height * 4 + height;
+        return (int) Math.min(length, MAX_FRAME_LENGTH);
+    }
+
     public static void send(OutputStream outputStream, BufferedImage image) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", out);
-        byte[] byteArray = out.toByteArray();
-        putIntToSocket(outputStream, byteArray.length);
-        outputStream.write(byteArray);
-        out.close();
+        send(outputStream, image, ImageCodec.PNG);
+    }
+
+    public static void send(OutputStream outputStream, BufferedImage image, ImageCodec codec) throws IOException {
+        send(outputStream, 0, 0, image, codec);
+    }
+
+    public static void send(OutputStream outputStream, int jobId, int tileId, BufferedImage image, ImageCodec codec) throws IOException {
+        send(outputStream, jobId, tileId, 0, image, codec);
+    }
+
+    public static void send(OutputStream outputStream, int jobId, int tileId, int computeTime, BufferedImage image,
+                            ImageCodec codec) throws IOException {
+        codec.write(outputStream, image, 0, 0, image.getWidth(), image.getHeight(), jobId, tileId, computeTime);
+        outputStream.flush();
+    }
+
+    /**
+     * Sends the {@code width x height} region at {@code x, y} of the image without copying it out first.
+     */
+    public static void send(OutputStream outputStream, int jobId, int tileId, BufferedImage image,
+                            int x, int y, int width, int height, ImageCodec codec) throws IOException {
+        codec.write(outputStream, image, x, y, width, height, jobId, tileId, 0);
         outputStream.flush();
     }
 
     public static BufferedImage receive(InputStream inputStream) throws IOException {
         int size = getIntFromSocket(inputStream);
-        byte[] bytes = new byte[size];
-        inputStream.readNBytes(bytes, 0, size);
-        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-        BufferedImage receivedImage = ImageIO.read(in);
-        in.close();
-        return receivedImage;
+        if (size < FRAME_HEADER_LENGTH) {
+            throw new ProtocolException("Illegal frame length: " + size);
+        }
+        getIntFromSocket(inputStream);
+        getIntFromSocket(inputStream);
+        getIntFromSocket(inputStream);
+        int codecId = inputStream.read();
+        if (codecId == -1) {
+            throw new EOFException();
+        }
+        return ImageCodec.fromId(codecId).read(inputStream, size - FRAME_HEADER_LENGTH);
+    }
+
+    /**
+     * Decodes a frame read without its length prefix, between the buffer's position and limit, leaving both unchanged.
+     */
+    public static BufferedImage decode(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < FRAME_HEADER_LENGTH) {
+            throw new ProtocolException("Frame is too short: " + frame.remaining());
+        }
+        ByteBuffer body = frame.duplicate();
+        body.position(frame.position() + FRAME_HEADER_LENGTH);
+        return ImageCodec.fromId(frame.get(frame.position() + FRAME_HEADER_LENGTH - 1) & 0xFF).read(body);
+    }
+
+    public static int frameJobId(ByteBuffer frame) {
+        return frame.getInt(frame.position());
+    }
+
+    public static int frameTileId(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 4);
+    }
+
+    public static int frameComputeTime(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 8);
     }
 
+    /**
+     * Returns the number of frames a result of {@code height} rows is streamed in, {@code bandRows} rows each but the
+     * last; with {@code bandRows} of 0 the result is a single frame.
+     */
+    public static int bandCount(int height, int bandRows) {
+        return (bandRows <= 0 || height <= bandRows) ? 1 : (height + bandRows - 1) / bandRows;
+    }
+
+    public static void sendHeartbeat(OutputStream outputStream) throws IOException {
+        putIntToSocket(outputStream, 0);
+        outputStream.flush();
+    }
+
+    /**
+     * Sends the codecs a client reads and the number of tiles it smooths at once, which the server reads with
+     * {@link #receiveHello} and {@link #receiveSlots}.
+     */
+    public static void sendHello(OutputStream outputStream, List<ImageCodec> codecs, int slots) throws IOException {
+        putIntToSocket(outputStream, MAGIC);
+        putIntToSocket(outputStream, PROTOCOL_VERSION);
+        outputStream.write(codecs.size());
+        for (ImageCodec codec : codecs) {
+            outputStream.write(codec.getId());
+        }
+        putIntToSocket(outputStream, slots);
+        outputStream.flush();
+    }
+
+    public static List<ImageCodec> receiveHello(InputStream inputStream) throws IOException {
+        receiveVersion(inputStream);
+        int count = inputStream.read();
+        if (count == -1) {
+            throw new EOFException();
+        }
+        List<ImageCodec> codecs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = inputStream.read();
+            if (id == -1) {
+                throw new EOFException();
+            }
+            try {
+                codecs.add(ImageCodec.fromId(id));
+            } catch (ProtocolException ignored) {
+                // a newer peer may offer codecs this side does not know
+            }
+        }
+        return codecs;
+    }
+
+    public static int receiveSlots(InputStream inputStream) throws IOException {
+        int slots = getIntFromSocket(inputStream);
+        if (slots < 1 || slots > MAX_SLOTS) {
+            throw new ProtocolException("Illegal slot count: " + slots);
+        }
+        return slots;
+    }
+
+    public static void sendWelcome(OutputStream outputStream, ImageCodec codec) throws IOException {
+        putIntToSocket(outputStream, MAGIC);
+        putIntToSocket(outputStream, PROTOCOL_VERSION);
+        outputStream.write(codec.getId());
+        outputStream.flush();
+    }
+
+    public static ImageCodec receiveWelcome(InputStream inputStream) throws IOException {
+        receiveVersion(inputStream);
+        int id = inputStream.read();
+        if (id == -1) {
+            throw new EOFException();
+        }
+        return ImageCodec.fromId(id);
+    }
+
+    private static void receiveVersion(InputStream inputStream) throws IOException {
+        int magic = getIntFromSocket(inputStream);
+        if (magic != MAGIC) {
+            throw new ProtocolException("Peer does not speak the smoothing protocol");
+        }
+        int version = getIntFromSocket(inputStream);
+        if (version != PROTOCOL_VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version + ", expected " + PROTOCOL_VERSION);
+        }
+    }
+
+    public static void putFilter(OutputStream outputStream, Filter filter) throws IOException {
+        outputStream.write(filter.getType().getId());
+        filter.writeParameters(outputStream);
+    }
+
+    public static Filter getFilter(InputStream inputStream) throws IOException {
+        int type = inputStream.read();
+        if (type == -1) {
+            throw new EOFException("Connection closed before the filter was read");
+        }
+        return FilterType.fromId(type).read(inputStream);
+    }
+
+    /**
+     * Writes a big-endian int byte by byte, which is cheap on the buffered and in-memory streams this is used with.
+     */
     public static void putIntToSocket(OutputStream outputStream, int value) throws IOException {
-        outputStream.write(ByteBuffer.allocate(4).putInt(value).array());
+        outputStream.write(value >>> 24);
+        outputStream.write(value >>> 16);
+        outputStream.write(value >>> 8);
+        outputStream.write(value);
     }
 
     public static int getIntFromSocket(InputStream inputStream) throws IOException {
-        byte[] bytes = new byte[4];
-        inputStream.readNBytes(bytes, 0, 4);
-        return ByteBuffer.wrap(bytes).getInt();
+        int b0 = inputStream.read(), b1 = inputStream.read(), b2 = inputStream.read(), b3 = inputStream.read();
+        if ((b0 | b1 | b2 | b3) < 0) {
+            throw new EOFException();
+        }
+        return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    static void readFully(InputStream inputStream, byte[] bytes, int offset, int length) throws IOException {
+        if (inputStream.readNBytes(bytes, offset, length) < length) {
+            throw new EOFException();
+        }
     }
 
     private Common() {
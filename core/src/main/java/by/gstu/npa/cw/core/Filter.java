@@ -0,0 +1,92 @@
+package by.gstu.npa.cw.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * A smoothing operation the server asks clients to run over tiles of an image. A filter is a sequence of passes; a
+ * pass reads at most {@link #getPassReachBefore()} pixels before and {@link #getPassReachAfter()} after every pixel,
+ * horizontally and vertically, so a tile smoothed with a halo of {@link #getReachBefore()} and
+ * {@link #getReachAfter()} pixels matches the same region of the smoothed image, and halo exchange only has to refresh
+ * the halo between passes. Filters are sent as {@code [byte type][parameters]} and compared by {@link #getKey()}.
+ */
+public interface Filter {
+
+    FilterType getType();
+
+    int getPassCount();
+
+    int getPassReachBefore();
+
+    int getPassReachAfter();
+
+    int getReachBefore();
+
+    int getReachAfter();
+
+    /**
+     * Runs passes {@code fromPass} (inclusive) to {@code toPass} (exclusive) over packed {@code 0xAARRGGBB} pixels.
+     * When a listener is given, the last pass reports its rows to it as they become final, {@code bandRows} at a time.
+     */
+    void apply(BoxSmoother smoother, int[] pixels, int width, int height, int fromPass, int toPass, int bandRows,
+               BoxSmoother.BandListener listener);
+
+    void writeParameters(OutputStream outputStream) throws IOException;
+
+    /**
+     * Returns a string that identifies the filter and its parameters and is safe to use in file names.
+     */
+    String getKey();
+
+    /**
+     * Returns the same filter with {@code passCount} passes, or {@code null} if its passes are not all alike. A filter
+     * that can be repeated can be continued from the result of fewer passes.
+     */
+    default Filter withPassCount(int passCount) {
+        return null;
+    }
+
+    /**
+     * {@code repeatCount} passes of {@link BoxSmoother}'s box kernel, the behaviour of every earlier version.
+     */
+    static Filter legacy(int kernelSize, int repeatCount) {
+        return new LegacyBoxFilter(kernelSize, repeatCount);
+    }
+
+    /**
+     * One pass of the mean over a {@code (2 * radius + 1)} square, clipped to the image, from a summed-area table.
+     */
+    static Filter box(int radius) {
+        return new IntegralBoxFilter(radius);
+    }
+
+    /**
+     * Gaussian blur with the given standard deviation, approximated by three box passes.
+     */
+    static Filter gaussian(double sigma) {
+        return new GaussianFilter((float) sigma);
+    }
+
+    /**
+     * Parses {@code legacy:<kernelSize>:<repeatCount>}, {@code box:<radius>} or {@code gaussian:<sigma>}.
+     */
+    static Filter parse(String spec) {
+        String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":");
+        try {
+            switch (parts[0]) {
+                case "legacy":
+                    return legacy(Integer.parseInt(parts[1]), (parts.length > 2) ? Integer.parseInt(parts[2]) : 1);
+                case "box":
+                    return box(Integer.parseInt(parts[1]));
+                case "gaussian":
+                    return gaussian(Double.parseDouble(parts[1]));
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal filter: " + spec, e);
+        }
+        throw new IllegalArgumentException("Unknown filter: " + spec);
+    }
+}
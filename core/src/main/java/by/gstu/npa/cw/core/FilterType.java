@@ -0,0 +1,69 @@
+package by.gstu.npa.cw.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Kinds of {@link Filter} and how their parameters are read from a request.
+ */
+public enum FilterType {
+
+    LEGACY_BOX(0) {
+        @Override
+        Filter read(InputStream inputStream) throws IOException {
+            int kernelSize = Common.getIntFromSocket(inputStream);
+            int repeatCount = Common.getIntFromSocket(inputStream);
+            if (kernelSize < 1 || kernelSize > LegacyBoxFilter.MAX_KERNEL_SIZE) {
+                throw new ProtocolException("Illegal kernel size: " + kernelSize);
+            }
+            if (repeatCount < 1 || repeatCount > LegacyBoxFilter.MAX_REPEAT_COUNT) {
+                throw new ProtocolException("Illegal repeat count: " + repeatCount);
+            }
+            return new LegacyBoxFilter(kernelSize, repeatCount);
+        }
+    },
+
+    BOX(1) {
+        @Override
+        Filter read(InputStream inputStream) throws IOException {
+            int radius = Common.getIntFromSocket(inputStream);
+            if (radius < 0 || radius > IntegralBoxFilter.MAX_RADIUS) {
+                throw new ProtocolException("Illegal box radius: " + radius);
+            }
+            return new IntegralBoxFilter(radius);
+        }
+    },
+
+    GAUSSIAN(2) {
+        @Override
+        Filter read(InputStream inputStream) throws IOException {
+            float sigma = Float.intBitsToFloat(Common.getIntFromSocket(inputStream));
+            if (!(sigma > 0 && sigma <= GaussianFilter.MAX_SIGMA)) {
+                throw new ProtocolException("Illegal Gaussian sigma: " + sigma);
+            }
+            return new GaussianFilter(sigma);
+        }
+    };
+
+    private final int id;
+
+    FilterType(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static FilterType fromId(int id) throws ProtocolException {
+        for (FilterType type : values()) {
+            if (type.id == id) {
+                return type;
+            }
+        }
+        throw new ProtocolException("Unknown filter: " + id);
+    }
+
+    abstract Filter read(InputStream inputStream) throws IOException;
+}
@@ -0,0 +1,115 @@
+package by.gstu.npa.cw.core;
+
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered input from a blocking channel. Request fields are read through the stream, while the bytes of a frame are
+ * taken from the buffer and then read from the channel straight into a pooled direct buffer. Frames longer than
+ * {@code smoothing.maxFrameMemory} megabytes, 512 by default, are refused before anything is allocated for them.
+ */
+public final class FrameInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final ReadableByteChannel channel;
+    private final BufferPool pool;
+    private final int maxFrameLength;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public FrameInputStream(ReadableByteChannel channel, BufferPool pool) {
+        this(channel, pool, (int) Math.min(Long.getLong("smoothing.maxFrameMemory", 512) << 20, Common.MAX_FRAME_LENGTH));
+    }
+
+    public FrameInputStream(ReadableByteChannel channel, BufferPool pool, int maxFrameLength) {
+        if (maxFrameLength < Common.FRAME_HEADER_LENGTH || maxFrameLength > Common.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Illegal maximum frame length: " + maxFrameLength);
+        }
+        this.channel = channel;
+        this.pool = pool;
+        this.maxFrameLength = maxFrameLength;
+        buffer.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Reads a frame into a pooled buffer and returns it without its length prefix; give the buffer back to the pool
+     * once it is decoded.
+     */
+    public ByteBuffer readFrame() throws IOException {
+        int length = Common.getIntFromSocket(this);
+        if (length < Common.FRAME_HEADER_LENGTH || length > maxFrameLength) {
+            throw new ProtocolException("Illegal frame length: " + length);
+        }
+        ByteBuffer frame = pool.acquire(length);
+        try {
+            int buffered = Math.min(buffer.remaining(), length);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + buffered);
+            frame.put(buffer);
+            buffer.limit(limit);
+            while (frame.hasRemaining()) {
+                if (channel.read(frame) < 0) {
+                    throw new EOFException("Connection closed in the middle of a frame");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            pool.release(frame);
+            throw e;
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Reads and decodes a frame.
+     */
+    public BufferedImage receive() throws IOException {
+        ByteBuffer frame = readFrame();
+        try {
+            return Common.decode(frame);
+        } finally {
+            pool.release(frame);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (buffer.hasRemaining()) {
+            return true;
+        }
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        return read > 0;
+    }
+}
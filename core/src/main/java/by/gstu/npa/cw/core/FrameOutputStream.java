@@ -0,0 +1,87 @@
+package by.gstu.npa.cw.core;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A message on its way to a channel: the request fields and the frame header are written to the stream itself, and the
+ * encoded image of {@link #writeFrame} is kept in a pooled direct buffer, so the whole message goes out in one gathering
+ * write without copying the pixels again. {@link #release()} returns the buffer once the message is written.
+ */
+public final class FrameOutputStream extends ByteArrayOutputStream {
+
+    private final BufferPool pool;
+    private ByteBuffer body;
+    private ByteBuffer[] buffers;
+
+    public FrameOutputStream(int size, BufferPool pool) {
+        super(size);
+        this.pool = pool;
+    }
+
+    /**
+     * Appends the frame of the {@code width x height} region at {@code x, y} of the image; a message holds at most one.
+     */
+    public void writeFrame(int jobId, int tileId, int computeTime, BufferedImage image, int x, int y, int width, int height,
+                           ImageCodec codec) throws IOException {
+        if (body != null) {
+            throw new IllegalStateException("Message already holds a frame");
+        }
+        body = codec.encode(image, x, y, width, height, pool);
+        codec.writeFrameHeader(this, body.remaining(), jobId, tileId, computeTime);
+    }
+
+    public void writeFrame(int jobId, int tileId, int computeTime, BufferedImage image, ImageCodec codec) throws IOException {
+        writeFrame(jobId, tileId, computeTime, image, 0, 0, image.getWidth(), image.getHeight(), codec);
+    }
+
+    /**
+     * Returns the buffers to hand to a gathering write; further writes to the stream are not included.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        if (buffers == null) {
+            ByteBuffer head = ByteBuffer.wrap(buf, 0, count);
+            buffers = (body != null) ? new ByteBuffer[]{head, body} : new ByteBuffer[]{head};
+        }
+        return buffers;
+    }
+
+    public boolean hasRemaining() {
+        for (ByteBuffer buffer : toByteBuffers()) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the whole message to a blocking channel.
+     */
+    public void writeFully(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] buffers = toByteBuffers();
+        while (hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Returns the frame's buffer to the pool.
+     */
+    public void release() {
+        if (body != null) {
+            pool.release(body);
+            body = null;
+        }
+        buffers = null;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        release();
+    }
+}
@@ -0,0 +1,109 @@
+package by.gstu.npa.cw.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Gaussian blur approximated by three summed-area box passes whose sizes are chosen so that the variance of the
+ * combined kernel matches {@code sigma}; three boxes are within a few percent of the true Gaussian.
+ */
+final class GaussianFilter implements Filter {
+
+    static final float MAX_SIGMA = 512;
+
+    private static final int BOXES = 3;
+
+    private final float sigma;
+    private final int[] radii;
+
+    GaussianFilter(float sigma) {
+        if (!(sigma > 0 && sigma <= MAX_SIGMA)) {
+            throw new IllegalArgumentException("Sigma must be positive and at most " + MAX_SIGMA + ": " + sigma);
+        }
+        this.sigma = sigma;
+        this.radii = radii(sigma);
+    }
+
+    /**
+     * Box radii of the approximation: {@code m} boxes of the odd width just below the ideal one and the rest two
+     * pixels wider, as in W. Jarosz, "Fast Image Convolutions".
+     */
+    private static int[] radii(float sigma) {
+        double variance = 12.0 * sigma * sigma;
+        int lower = (int) Math.floor(Math.sqrt(variance / BOXES + 1));
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        long narrow = Math.round((variance - BOXES * lower * lower - 4.0 * BOXES * lower - 3 * BOXES) / (-4.0 * lower - 4));
+        int[] radii = new int[BOXES];
+        for (int i = 0; i < BOXES; i++) {
+            radii[i] = (((i < narrow) ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    @Override
+    public FilterType getType() {
+        return FilterType.GAUSSIAN;
+    }
+
+    @Override
+    public int getPassCount() {
+        return BOXES;
+    }
+
+    @Override
+    public int getPassReachBefore() {
+        return Math.max(Math.max(radii[0], radii[1]), radii[2]);
+    }
+
+    @Override
+    public int getPassReachAfter() {
+        return getPassReachBefore();
+    }
+
+    @Override
+    public int getReachBefore() {
+        return radii[0] + radii[1] + radii[2];
+    }
+
+    @Override
+    public int getReachAfter() {
+        return getReachBefore();
+    }
+
+    @Override
+    public void apply(BoxSmoother smoother, int[] pixels, int width, int height, int fromPass, int toPass,
+                      int bandRows, BoxSmoother.BandListener listener) {
+        int last = Math.min(toPass, BOXES) - 1;
+        for (int pass = Math.max(fromPass, 0); pass <= last; pass++) {
+            smoother.integralBox(pixels, width, height, radii[pass], bandRows, (pass == last) ? listener : null);
+        }
+    }
+
+    @Override
+    public void writeParameters(OutputStream outputStream) throws IOException {
+        Common.putIntToSocket(outputStream, Float.floatToIntBits(sigma));
+    }
+
+    @Override
+    public String getKey() {
+        return "gaussian-" + sigma;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GaussianFilter && Float.compare(((GaussianFilter) o).sigma, sigma) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Float.hashCode(sigma);
+    }
+
+    @Override
+    public String toString() {
+        return "gaussian:" + sigma;
+    }
+}
@@ -0,0 +1,262 @@
+package by.gstu.npa.cw.core;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Encodings of an image frame. Every frame is
+ * {@code [int length][int jobId][int tileId][int computeTime][byte codec][body]}, where {@code length} counts the bytes
+ * after itself, so a receiver can route a frame by its identifiers and decode any codec regardless of what was
+ * negotiated; {@code computeTime} is the time in microseconds a client spent smoothing the result, or 0. Raw bodies are
+ * {@code [int width][int height][byte pixelFormat][pixels]} with pixels packed row by row. Any region of an image can be
+ * written as a frame of its own; raw codecs pack it straight from the image's {@link IntRaster} rows. Bodies can also
+ * be encoded into and decoded from pooled buffers, which is how frames travel over channels.
+ */
+public enum ImageCodec {
+
+    PNG(0) {
+        @Override
+        void write(OutputStream outputStream, BufferedImage image, int x, int y, int width, int height,
+                   int jobId, int tileId, int computeTime) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            boolean whole = x == 0 && y == 0 && width == image.getWidth() && height == image.getHeight();
+            ImageIO.write(whole ? image : image.getSubimage(x, y, width, height), "png", out);
+            writeFrameHeader(outputStream, out.size(), jobId, tileId, computeTime);
+            out.writeTo(outputStream);
+        }
+
+        @Override
+        ByteBuffer encode(BufferedImage image, int x, int y, int width, int height, BufferPool pool) throws IOException {
+            ByteBufferOutputStream out = new ByteBufferOutputStream(pool, width * height + 1024);
+            boolean whole = x == 0 && y == 0 && width == image.getWidth() && height == image.getHeight();
+            ImageIO.write(whole ? image : image.getSubimage(x, y, width, height), "png", out);
+            return out.toByteBuffer();
+        }
+
+        @Override
+        BufferedImage read(InputStream inputStream, int bodyLength) throws IOException {
+            byte[] bytes = new byte[bodyLength];
+            Common.readFully(inputStream, bytes, 0, bodyLength);
+            return read(ByteBuffer.wrap(bytes));
+        }
+
+        @Override
+        BufferedImage read(ByteBuffer body) throws IOException {
+            BufferedImage image = ImageIO.read(new ByteBufferInputStream(body));
+            if (image == null) {
+                throw new ProtocolException("PNG frame does not contain an image");
+            }
+            return image;
+        }
+    },
+
+    RAW(1) {
+        @Override
+        void write(OutputStream outputStream, BufferedImage image, int x, int y, int width, int height,
+                   int jobId, int tileId, int computeTime) throws IOException {
+            writeFrameHeader(outputStream, RAW_HEADER_LENGTH + width * height * PIXEL_RGB_BYTES, jobId, tileId, computeTime);
+            writeRawHeader(outputStream, width, height);
+            writeRows(outputStream, image, x, y, width, height);
+        }
+
+        @Override
+        ByteBuffer encode(BufferedImage image, int x, int y, int width, int height, BufferPool pool) throws IOException {
+            ByteBufferOutputStream out = new ByteBufferOutputStream(pool, RAW_HEADER_LENGTH + width * height * PIXEL_RGB_BYTES);
+            writeRawHeader(out, width, height);
+            writeRows(out, image, x, y, width, height);
+            return out.toByteBuffer();
+        }
+
+        @Override
+        BufferedImage read(InputStream inputStream, int bodyLength) throws IOException {
+            BufferedImage image = readRawHeader(inputStream);
+            int width = image.getWidth(), height = image.getHeight();
+            if (bodyLength != RAW_HEADER_LENGTH + width * height * PIXEL_RGB_BYTES) {
+                throw new ProtocolException("Raw frame length does not match " + width + "x" + height);
+            }
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            byte[] row = new byte[width * PIXEL_RGB_BYTES];
+            for (int j = 0; j < height; j++) {
+                Common.readFully(inputStream, row, 0, row.length);
+                unpackRow(row, pixels, j * width, width);
+            }
+            return image;
+        }
+    },
+
+    RAW_DEFLATE(2) {
+        @Override
+        void write(OutputStream outputStream, BufferedImage image, int x, int y, int width, int height,
+                   int jobId, int tileId, int computeTime) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1 << 16)) {
+                writeRows(deflated, image, x, y, width, height);
+            } finally {
+                deflater.end();
+            }
+            writeFrameHeader(outputStream, RAW_HEADER_LENGTH + out.size(), jobId, tileId, computeTime);
+            writeRawHeader(outputStream, width, height);
+            out.writeTo(outputStream);
+        }
+
+        @Override
+        ByteBuffer encode(BufferedImage image, int x, int y, int width, int height, BufferPool pool) throws IOException {
+            ByteBufferOutputStream out = new ByteBufferOutputStream(pool, RAW_HEADER_LENGTH + width * height + 1024);
+            writeRawHeader(out, width, height);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1 << 16)) {
+                writeRows(deflated, image, x, y, width, height);
+            } finally {
+                deflater.end();
+            }
+            return out.toByteBuffer();
+        }
+
+        @Override
+        BufferedImage read(InputStream inputStream, int bodyLength) throws IOException {
+            BufferedImage image = readRawHeader(inputStream);
+            int width = image.getWidth(), height = image.getHeight();
+            byte[] compressed = new byte[bodyLength - RAW_HEADER_LENGTH];
+            Common.readFully(inputStream, compressed, 0, compressed.length);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            byte[] row = new byte[width * PIXEL_RGB_BYTES];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                for (int j = 0; j < height; j++) {
+                    int filled = 0;
+                    while (filled < row.length) {
+                        int inflated = inflater.inflate(row, filled, row.length - filled);
+                        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new ProtocolException("Compressed frame is truncated");
+                        }
+                        filled += inflated;
+                    }
+                    unpackRow(row, pixels, j * width, width);
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Compressed frame is corrupted: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            return image;
+        }
+    };
+
+    public static final int PIXEL_RGB = 1;
+
+    static final int PIXEL_RGB_BYTES = 3;
+    static final int RAW_HEADER_LENGTH = 9;
+
+    private final int id;
+
+    ImageCodec(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static ImageCodec fromId(int id) throws ProtocolException {
+        for (ImageCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new ProtocolException("Unknown image codec: " + id);
+    }
+
+    abstract void write(OutputStream outputStream, BufferedImage image, int x, int y, int width, int height,
+                        int jobId, int tileId, int computeTime) throws IOException;
+
+    /**
+     * Encodes the body of the region's frame into a buffer of the pool, between its position and limit.
+     */
+    abstract ByteBuffer encode(BufferedImage image, int x, int y, int width, int height, BufferPool pool) throws IOException;
+
+    abstract BufferedImage read(InputStream inputStream, int bodyLength) throws IOException;
+
+    /**
+     * Decodes a body between the buffer's position and limit.
+     */
+    BufferedImage read(ByteBuffer body) throws IOException {
+        return read(new ByteBufferInputStream(body), body.remaining());
+    }
+
+    void writeFrameHeader(OutputStream outputStream, int bodyLength, int jobId, int tileId, int computeTime) throws IOException {
+        Common.putIntToSocket(outputStream, Common.FRAME_HEADER_LENGTH + bodyLength);
+        Common.putIntToSocket(outputStream, jobId);
+        Common.putIntToSocket(outputStream, tileId);
+        Common.putIntToSocket(outputStream, computeTime);
+        outputStream.write(id);
+    }
+
+    private static void writeRawHeader(OutputStream outputStream, int width, int height) throws IOException {
+        Common.putIntToSocket(outputStream, width);
+        Common.putIntToSocket(outputStream, height);
+        outputStream.write(PIXEL_RGB);
+    }
+
+    private static BufferedImage readRawHeader(InputStream inputStream) throws IOException {
+        int width = Common.getIntFromSocket(inputStream);
+        int height = Common.getIntFromSocket(inputStream);
+        int pixelFormat = inputStream.read();
+        if (pixelFormat != PIXEL_RGB) {
+            throw new ProtocolException("Unsupported pixel format: " + pixelFormat);
+        }
+        if (width <= 0 || height <= 0 || (long) width * height * PIXEL_RGB_BYTES > Integer.MAX_VALUE - 16) {
+            throw new ProtocolException("Illegal frame size: " + width + "x" + height);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static void writeRows(OutputStream outputStream, BufferedImage image, int x, int y, int width, int height)
+            throws IOException {
+        int[] pixels = IntRaster.pixels(image);
+        int stride = 0, offset = 0;
+        if (pixels != null) {
+            stride = IntRaster.stride(image);
+            offset = IntRaster.offset(image, x, y);
+        } else {
+            pixels = new int[width];
+        }
+        byte[] row = new byte[width * PIXEL_RGB_BYTES];
+        for (int j = 0; j < height; j++) {
+            if (stride > 0) {
+                packRow(pixels, offset + j * stride, row, width);
+            } else {
+                image.getRGB(x, y + j, width, 1, pixels, 0, width);
+                packRow(pixels, 0, row, width);
+            }
+            outputStream.write(row);
+        }
+    }
+
+    static void packRow(int[] pixels, int offset, byte[] row, int width) {
+        for (int i = 0, k = 0; i < width; i++) {
+            int rgb = pixels[offset + i];
+            row[k++] = (byte) (rgb >> 16);
+            row[k++] = (byte) (rgb >> 8);
+            row[k++] = (byte) rgb;
+        }
+    }
+
+    static void unpackRow(byte[] row, int[] pixels, int offset, int width) {
+        for (int i = 0, k = 0; i < width; i++, k += PIXEL_RGB_BYTES) {
+            pixels[offset + i] = ((row[k] & 0xFF) << 16) | ((row[k + 1] & 0xFF) << 8) | (row[k + 2] & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package by.gstu.npa.cw.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Direct access to the {@code int[]} behind {@link BufferedImage#TYPE_INT_RGB} and {@link BufferedImage#TYPE_INT_ARGB}
+ * images, so regions are copied row by row with {@link System#arraycopy} instead of going through Java2D. Other image
+ * types fall back to {@link BufferedImage#getRGB} and {@link BufferedImage#setRGB}.
+ */
+public final class IntRaster {
+
+    private IntRaster() {
+    }
+
+    /**
+     * Returns the pixels of a packed integer image, or {@code null} if the image is not one.
+     */
+    public static int[] pixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        Raster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return null;
+        }
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * Index of pixel {@code x, y} in {@link #pixels}.
+     */
+    public static int offset(BufferedImage image, int x, int y) {
+        Raster raster = image.getRaster();
+        return raster.getDataBuffer().getOffset()
+                + (y - raster.getSampleModelTranslateY()) * stride(image)
+                + (x - raster.getSampleModelTranslateX());
+    }
+
+    /**
+     * Distance in {@link #pixels} between vertically adjacent pixels.
+     */
+    public static int stride(BufferedImage image) {
+        return ((SinglePixelPackedSampleModel) image.getRaster().getSampleModel()).getScanlineStride();
+    }
+
+    /**
+     * Copies the {@code width x height} region at {@code sourceX, sourceY} of {@code source} to {@code targetX, targetY}
+     * of {@code target}.
+     */
+    public static void copy(BufferedImage source, int sourceX, int sourceY,
+                            BufferedImage target, int targetX, int targetY, int width, int height) {
+        int[] from = pixels(source), to = pixels(target);
+        if (from != null && to != null && target.getType() == BufferedImage.TYPE_INT_RGB) {
+            int sourceStride = stride(source), targetStride = stride(target);
+            int sourceOffset = offset(source, sourceX, sourceY), targetOffset = offset(target, targetX, targetY);
+            for (int j = 0; j < height; j++) {
+                System.arraycopy(from, sourceOffset + j * sourceStride, to, targetOffset + j * targetStride, width);
+            }
+            return;
+        }
+        int[] row = new int[width];
+        for (int j = 0; j < height; j++) {
+            source.getRGB(sourceX, sourceY + j, width, 1, row, 0, width);
+            target.setRGB(targetX, targetY + j, width, 1, row, 0, width);
+        }
+    }
+
+    /**
+     * Returns a {@link BufferedImage#TYPE_INT_RGB} copy of the {@code width x height} region at {@code x, y}.
+     */
+    public static BufferedImage crop(BufferedImage source, int x, int y, int width, int height) {
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        copy(source, x, y, copy, 0, 0, width, height);
+        return copy;
+    }
+}
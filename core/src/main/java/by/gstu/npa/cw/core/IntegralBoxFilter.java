@@ -0,0 +1,87 @@
+package by.gstu.npa.cw.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The mean over a square window of any size in a single pass, read from a summed-area table.
+ */
+final class IntegralBoxFilter implements Filter {
+
+    /**
+     * Largest radius whose window sums still fit the 32-bit table; see {@link BoxSmoother#integralBox}.
+     */
+    static final int MAX_RADIUS = 2047;
+
+    private final int radius;
+
+    IntegralBoxFilter(int radius) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Box radius must be between 0 and " + MAX_RADIUS + ": " + radius);
+        }
+        this.radius = radius;
+    }
+
+    @Override
+    public FilterType getType() {
+        return FilterType.BOX;
+    }
+
+    @Override
+    public int getPassCount() {
+        return 1;
+    }
+
+    @Override
+    public int getPassReachBefore() {
+        return radius;
+    }
+
+    @Override
+    public int getPassReachAfter() {
+        return radius;
+    }
+
+    @Override
+    public int getReachBefore() {
+        return radius;
+    }
+
+    @Override
+    public int getReachAfter() {
+        return radius;
+    }
+
+    @Override
+    public void apply(BoxSmoother smoother, int[] pixels, int width, int height, int fromPass, int toPass,
+                      int bandRows, BoxSmoother.BandListener listener) {
+        if (fromPass == 0 && toPass > 0) {
+            smoother.integralBox(pixels, width, height, radius, bandRows, listener);
+        }
+    }
+
+    @Override
+    public void writeParameters(OutputStream outputStream) throws IOException {
+        Common.putIntToSocket(outputStream, radius);
+    }
+
+    @Override
+    public String getKey() {
+        return "box-" + radius;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IntegralBoxFilter && ((IntegralBoxFilter) o).radius == radius;
+    }
+
+    @Override
+    public int hashCode() {
+        return radius;
+    }
+
+    @Override
+    public String toString() {
+        return "box:" + radius;
+    }
+}
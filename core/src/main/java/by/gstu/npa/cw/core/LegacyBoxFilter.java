@@ -0,0 +1,101 @@
+package by.gstu.npa.cw.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Repeated passes of {@link BoxSmoother}'s box kernel.
+ */
+final class LegacyBoxFilter implements Filter {
+
+    /**
+     * Largest kernel, as wide as the window of the largest {@link IntegralBoxFilter}; server and clients check the same
+     * range, so a filter either runs alike everywhere or is refused.
+     */
+    static final int MAX_KERNEL_SIZE = 2 * IntegralBoxFilter.MAX_RADIUS + 1;
+    static final int MAX_REPEAT_COUNT = 1000;
+
+    private final int kernelSize;
+    private final int repeatCount;
+
+    LegacyBoxFilter(int kernelSize, int repeatCount) {
+        if (kernelSize < 1 || kernelSize > MAX_KERNEL_SIZE) {
+            throw new IllegalArgumentException("Kernel size must be between 1 and " + MAX_KERNEL_SIZE + ": " + kernelSize);
+        }
+        if (repeatCount < 1 || repeatCount > MAX_REPEAT_COUNT) {
+            throw new IllegalArgumentException("Repeat count must be between 1 and " + MAX_REPEAT_COUNT + ": " + repeatCount);
+        }
+        this.kernelSize = kernelSize;
+        this.repeatCount = repeatCount;
+    }
+
+    @Override
+    public FilterType getType() {
+        return FilterType.LEGACY_BOX;
+    }
+
+    @Override
+    public int getPassCount() {
+        return repeatCount;
+    }
+
+    @Override
+    public int getPassReachBefore() {
+        return BoxSmoother.reachBefore(kernelSize);
+    }
+
+    @Override
+    public int getPassReachAfter() {
+        return BoxSmoother.reachAfter(kernelSize);
+    }
+
+    @Override
+    public int getReachBefore() {
+        return repeatCount * getPassReachBefore();
+    }
+
+    @Override
+    public int getReachAfter() {
+        return repeatCount * getPassReachAfter();
+    }
+
+    @Override
+    public void apply(BoxSmoother smoother, int[] pixels, int width, int height, int fromPass, int toPass,
+                      int bandRows, BoxSmoother.BandListener listener) {
+        if (toPass > fromPass) {
+            smoother.smooth(pixels, width, height, kernelSize, toPass - fromPass, bandRows, listener);
+        }
+    }
+
+    @Override
+    public void writeParameters(OutputStream outputStream) throws IOException {
+        Common.putIntToSocket(outputStream, kernelSize);
+        Common.putIntToSocket(outputStream, repeatCount);
+    }
+
+    @Override
+    public String getKey() {
+        return "legacy-" + kernelSize + "-" + repeatCount;
+    }
+
+    @Override
+    public Filter withPassCount(int passCount) {
+        return new LegacyBoxFilter(kernelSize, passCount);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LegacyBoxFilter && ((LegacyBoxFilter) o).kernelSize == kernelSize
+                && ((LegacyBoxFilter) o).repeatCount == repeatCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * kernelSize + repeatCount;
+    }
+
+    @Override
+    public String toString() {
+        return "legacy:" + kernelSize + ":" + repeatCount;
+    }
+}
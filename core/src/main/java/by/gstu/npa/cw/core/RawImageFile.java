@@ -0,0 +1,155 @@
+package by.gstu.npa.cw.core;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An RGB image stored on disk with the layout of an {@link ImageCodec#RAW} body,
+ * {@code [int width][int height][byte pixelFormat][pixels]}. Rows are read and written through memory mapping a band
+ * at a time, so the image itself never has to fit in the heap.
+ */
+public final class RawImageFile implements AutoCloseable {
+
+    private static final long MAX_MAPPING = 64L << 20;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final FileChannel.MapMode mode;
+
+    private RawImageFile(FileChannel channel, int width, int height, FileChannel.MapMode mode) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.mode = mode;
+    }
+
+    public static RawImageFile create(Path path, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Illegal image size: " + width + "x" + height);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(ImageCodec.RAW_HEADER_LENGTH);
+            header.putInt(width).putInt(height).put((byte) ImageCodec.PIXEL_RGB).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            return new RawImageFile(channel, width, height, FileChannel.MapMode.READ_WRITE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static RawImageFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(ImageCodec.RAW_HEADER_LENGTH);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new ProtocolException("Raw image header is truncated: " + path);
+                }
+            }
+            header.flip();
+            int width = header.getInt(), height = header.getInt(), pixelFormat = header.get() & 0xFF;
+            if (pixelFormat != ImageCodec.PIXEL_RGB) {
+                throw new ProtocolException("Unsupported pixel format: " + pixelFormat);
+            }
+            if (width <= 0 || height <= 0
+                    || channel.size() < ImageCodec.RAW_HEADER_LENGTH + (long) width * height * ImageCodec.PIXEL_RGB_BYTES) {
+                throw new ProtocolException("Raw image " + path + " does not hold " + width + "x" + height + " pixels");
+            }
+            return new RawImageFile(channel, width, height, FileChannel.MapMode.READ_ONLY);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads {@code rows} rows starting at {@code y} into a new {@code TYPE_INT_RGB} image.
+     */
+    public BufferedImage read(int y, int rows) throws IOException {
+        checkRows(y, rows);
+        BufferedImage band = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = new int[width];
+        byte[] row = new byte[width * ImageCodec.PIXEL_RGB_BYTES];
+        int done = 0;
+        while (done < rows) {
+            int count = rowsPerMapping(rows - done);
+            MappedByteBuffer buffer = map(y + done, count);
+            for (int j = 0; j < count; j++) {
+                buffer.get(row);
+                ImageCodec.unpackRow(row, pixels, 0, width);
+                band.getRaster().setDataElements(0, done + j, width, 1, pixels);
+            }
+            done += count;
+        }
+        return band;
+    }
+
+    /**
+     * Writes {@code rows} rows of {@code band}, starting at its row {@code bandY}, to the rows starting at {@code y}.
+     */
+    public void write(BufferedImage band, int bandY, int y, int rows) throws IOException {
+        checkRows(y, rows);
+        if (band.getWidth() != width || bandY < 0 || bandY + rows > band.getHeight()) {
+            throw new IllegalArgumentException("Band " + band.getWidth() + "x" + band.getHeight()
+                    + " has no rows " + bandY + ".." + (bandY + rows) + " of width " + width);
+        }
+        boolean packed = band.getType() == BufferedImage.TYPE_INT_RGB || band.getType() == BufferedImage.TYPE_INT_ARGB;
+        int[] pixels = new int[width];
+        byte[] row = new byte[width * ImageCodec.PIXEL_RGB_BYTES];
+        int done = 0;
+        while (done < rows) {
+            int count = rowsPerMapping(rows - done);
+            MappedByteBuffer buffer = map(y + done, count);
+            for (int j = 0; j < count; j++) {
+                if (packed) {
+                    band.getRaster().getDataElements(0, bandY + done + j, width, 1, pixels);
+                } else {
+                    band.getRGB(0, bandY + done + j, width, 1, pixels, 0, width);
+                }
+                ImageCodec.packRow(pixels, 0, row, width);
+                buffer.put(row);
+            }
+            done += count;
+        }
+    }
+
+    private void checkRows(int y, int rows) {
+        if (y < 0 || rows < 0 || y + rows > height) {
+            throw new IndexOutOfBoundsException("Rows " + y + ".." + (y + rows) + " are out of 0.." + height);
+        }
+    }
+
+    private int rowsPerMapping(int rows) {
+        return (int) Math.max(Math.min(rows, MAX_MAPPING / ((long) width * ImageCodec.PIXEL_RGB_BYTES)), 1);
+    }
+
+    private MappedByteBuffer map(int y, int rows) throws IOException {
+        long rowLength = (long) width * ImageCodec.PIXEL_RGB_BYTES;
+        return channel.map(mode, ImageCodec.RAW_HEADER_LENGTH + y * rowLength, rows * rowLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,116 @@
+package by.gstu.npa.cw.core;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The packed-lane kernel, parallel bands and banded delivery must give exactly the pixels of the sequential scalar
+ * kernel.
+ */
+class BoxSmootherParityTest {
+
+    private static final int[] KERNELS = {1, 2, 3, 4, 5, 8, 15, 29, 64};
+    private static final int[][] SIZES = {{1, 1}, {1, 17}, {23, 1}, {2, 3}, {7, 5}, {31, 19}, {64, 64}, {97, 41}};
+
+    private static ExecutorService executor;
+
+    @BeforeAll
+    static void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void stopExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    void packedLanesMatchScalar() {
+        Random random = new Random(1);
+        BoxSmoother scalar = new BoxSmoother(null, 1, false);
+        BoxSmoother packed = new BoxSmoother(null, 1, true);
+        for (int[] size : SIZES) {
+            for (int kernel : KERNELS) {
+                for (int repeat = 1; repeat <= 3; repeat++) {
+                    int[] pixels = randomPixels(random, size[0] * size[1]);
+                    assertSame(scalar, packed, pixels, size[0], size[1], kernel, repeat);
+                }
+            }
+        }
+    }
+
+    @Test
+    void parallelBandsMatchSequential() {
+        Random random = new Random(2);
+        BoxSmoother sequential = new BoxSmoother(null, 1, false);
+        for (boolean packedLanes : new boolean[]{false, true}) {
+            for (int parallelism : new int[]{2, 3, 4}) {
+                BoxSmoother parallel = new BoxSmoother(executor, parallelism, packedLanes);
+                for (int[] size : SIZES) {
+                    for (int kernel : KERNELS) {
+                        int[] pixels = randomPixels(random, size[0] * size[1]);
+                        assertSame(sequential, parallel, pixels, size[0], size[1], kernel, 2);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void windowsTooWideForLanesFallBackToScalar() {
+        Random random = new Random(3);
+        int[] pixels = randomPixels(random, 40 * 12);
+        assertSame(new BoxSmoother(null, 1, false), new BoxSmoother(null, 1, true), pixels, 40, 12,
+                BoxSmoother.MAX_PACKED_WINDOW + 2, 1);
+    }
+
+    @Test
+    void bandsAreReportedInOrderAndMatchWholeImage() {
+        Random random = new Random(4);
+        BoxSmoother scalar = new BoxSmoother(null, 1, false);
+        for (boolean packedLanes : new boolean[]{false, true}) {
+            BoxSmoother banded = new BoxSmoother(executor, 3, packedLanes);
+            for (int[] size : SIZES) {
+                for (int kernel : new int[]{2, 5, 15}) {
+                    int width = size[0], height = size[1];
+                    int[] pixels = randomPixels(random, width * height);
+                    int[] expected = pixels.clone();
+                    scalar.smooth(expected, width, height, kernel, 3);
+                    int[] actual = pixels.clone();
+                    int[] nextRow = {0};
+                    banded.smooth(actual, width, height, kernel, 3, 7, (fromRow, toRow) -> {
+                        assertEquals(nextRow[0], fromRow, "bands must be contiguous");
+                        nextRow[0] = toRow;
+                    });
+                    assertEquals(height, nextRow[0], "every row must be reported");
+                    assertArrayEquals(expected, actual, width + "x" + height + ", kernel " + kernel);
+                }
+            }
+        }
+    }
+
+    private static void assertSame(BoxSmoother reference, BoxSmoother candidate, int[] pixels, int width, int height,
+                                   int kernel, int repeat) {
+        int[] expected = pixels.clone();
+        reference.smooth(expected, width, height, kernel, repeat);
+        int[] actual = pixels.clone();
+        candidate.smooth(actual, width, height, kernel, repeat);
+        assertArrayEquals(expected, actual, width + "x" + height + ", kernel " + kernel + ", repeat " + repeat
+                + ", parallelism " + candidate.getParallelism() + ", packed lanes " + candidate.isPackedLanes());
+    }
+
+    private static int[] randomPixels(Random random, int length) {
+        int[] pixels = new int[length];
+        Arrays.setAll(pixels, i -> random.nextInt());
+        return pixels;
+    }
+}
@@ -1,7 +1,20 @@
 import by.gstu.npa.cw.server.App;
+import by.gstu.npa.cw.server.BatchServer;
+import by.gstu.npa.cw.server.SequenceServer;
+import by.gstu.npa.cw.server.StreamServer;
+
+import java.util.Arrays;
 
 public class Launcher {
     public static void main(String[] args) {
-        App.main(args);
+        if (args.length > 0 && "-batch".equals(args[0])) {
+            BatchServer.main(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && "-stream".equals(args[0])) {
+            StreamServer.main(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && "-sequence".equals(args[0])) {
+            SequenceServer.main(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            App.main(args);
+        }
     }
 }
@@ -22,6 +22,9 @@ public final class App extends Application {
         if (args.length == 1) {
             if ("-h".equals(args[0]) || "-help".equals(args[0])) {
                 System.out.println("The first argument is a language tag (for example, 'ru' or 'en'). By default, the system language is used.");
+                System.out.println("Start with '-batch' to smooth a batch of files without the window, '-batch -h' describes its arguments.");
+                System.out.println("Start with '-stream' to smooth an image larger than the memory into a raw file, '-stream -h' describes its arguments.");
+                System.out.println("Start with '-sequence' to smooth numbered frames in order and report the frame rate, '-sequence -h' describes its arguments.");
                 return;
             } else {
                 languageTag = args[0];
@@ -0,0 +1,192 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Filter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless server that smooths a batch of image files. Decoding of upcoming images, distributed smoothing and PNG
+ * encoding of finished images run as a pipeline; at most {@code smoothing.batchWindow} images are in it at once, which
+ * bounds the memory and keeps the clients busy between images.
+ */
+public final class BatchServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(BatchServer.class);
+
+    public static void main(String[] args) {
+        System.out.println("Enter '-h' or '-help' to get information about the arguments.");
+        if (args.length < 2 || "-h".equals(args[0]) || "-help".equals(args[0])) {
+            System.out.println("The first argument is an input directory or a text file with one image path per line.");
+            System.out.println("The second argument is the output directory, smoothed images are written there as PNG.");
+            printFilterUsage();
+            return;
+        }
+        Filter filter;
+        try {
+            filter = BatchServer.filterArgument(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        try (BatchServer server = new BatchServer(Integer.getInteger("smoothing.batchWindow", 4))) {
+            List<File> files = listInput(new File(args[0]));
+            File outputDirectory = new File(args[1]);
+            int clientsCount = (args.length > 4) ? Integer.parseInt(args[4]) : 1;
+            server.run(files, outputDirectory, filter, clientsCount);
+        } catch (Exception e) {
+            LOGGER.fatal(e);
+        }
+    }
+
+    /**
+     * Prints the help on the filter and client arguments, the third to the fifth, that the command-line servers share.
+     */
+    static void printFilterUsage() {
+        System.out.println("The third argument is the kernel size from 1 to 4095, by default 3,");
+        System.out.println("or a filter: 'box:<radius>', 'gaussian:<sigma>' or 'legacy:<kernel size>:<repeat count>'.");
+        System.out.println("The fourth argument is the repeat count of the kernel from 1 to 1000, by default 1.");
+        System.out.println("The fifth argument is the number of clients to wait for, by default 1; with 0 the server starts on its own cores.");
+    }
+
+    /**
+     * Reads the filter from the third and fourth arguments, a kernel size and a repeat count or a filter spec, and
+     * rejects values out of range with a message for the user.
+     */
+    static Filter filterArgument(String[] args) {
+        try {
+            if (args.length > 2 && !args[2].matches("\\d+")) {
+                return Filter.parse(args[2]);
+            }
+            return Filter.legacy((args.length > 2) ? Integer.parseInt(args[2]) : 3, (args.length > 3) ? Integer.parseInt(args[3]) : 1);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Illegal filter arguments, enter '-help' for their ranges: " + e.getMessage(), e);
+        }
+    }
+
+    private final SocketSmoothManager smoothManager = new SocketSmoothManager();
+    private final ExecutorService decodePool;
+    private final ExecutorService encodePool;
+    private final int window;
+
+    public BatchServer(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Batch window must be positive: " + window);
+        }
+        this.window = window;
+        int threads = Math.min(window, Runtime.getRuntime().availableProcessors());
+        decodePool = Executors.newFixedThreadPool(threads);
+        encodePool = Executors.newFixedThreadPool(threads);
+    }
+
+    public SocketSmoothManager getSmoothManager() {
+        return smoothManager;
+    }
+
+    /**
+     * Smooths every file into {@code outputDirectory} and returns the number of images written. A file that cannot be
+     * read or written is logged and skipped.
+     */
+    public int run(List<File> files, File outputDirectory, Filter filter, int clientsCount)
+            throws IOException, InterruptedException {
+        Files.createDirectories(outputDirectory.toPath());
+        LOGGER.info("Waiting for " + clientsCount + " client(s) to smooth " + files.size() + " image(s)");
+        smoothManager.awaitClients(clientsCount).join();
+        Semaphore permits = new Semaphore(window);
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> images = new ArrayList<>(files.size());
+        long startedAt = System.nanoTime();
+        for (File file : files) {
+            permits.acquire();
+            File output = new File(outputDirectory, outputName(file));
+            images.add(CompletableFuture.supplyAsync(() -> decode(file), decodePool)
+                    .thenCompose(image -> smoothManager.submit(image, filter))
+                    .thenAcceptAsync(result -> encode(result.getImage(), output), encodePool)
+                    .whenComplete((ignored, error) -> {
+                        permits.release();
+                        if (error != null) {
+                            failed.incrementAndGet();
+                            LOGGER.warn("Image " + file + " has not been smoothed", error);
+                        } else {
+                            written.incrementAndGet();
+                        }
+                    }));
+        }
+        CompletableFuture.allOf(images.toArray(new CompletableFuture<?>[0])).exceptionally(error -> null).join();
+        long elapsed = System.nanoTime() - startedAt;
+        double seconds = Math.max(elapsed, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        String report = String.format("%d image(s) smoothed, %d failed in %.2f s: %.2f images/s",
+                written.get(), failed.get(), seconds, written.get() / seconds);
+        LOGGER.info(report);
+        System.out.println(report);
+        return written.get();
+    }
+
+    @Override
+    public void close() {
+        decodePool.shutdown();
+        encodePool.shutdown();
+        smoothManager.close();
+    }
+
+    static List<File> listInput(File input) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] children = input.listFiles(File::isFile);
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            }
+        } else {
+            for (String line : Files.readAllLines(input.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    files.add(new File(line.trim()));
+                }
+            }
+        }
+        return files;
+    }
+
+    static String outputName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return ((dot > 0) ? name.substring(0, dot) : name) + ".png";
+    }
+
+    static BufferedImage decode(File file) {
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            return image;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void encode(BufferedImage image, File output) {
+        try {
+            ImageIO.write(image, "png", output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
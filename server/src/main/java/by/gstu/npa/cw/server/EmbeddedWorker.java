@@ -0,0 +1,93 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.BoxSmoother;
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.IntRaster;
+import by.gstu.npa.cw.server.ServerMetrics.Phase;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A worker on a thread of the server. It reads the halo region of a tile straight from the job's source image, runs
+ * the filter on its own {@link BoxSmoother} and merges every band into the result as soon as it is final, so a tile
+ * costs no encoding, copying through buffers or round trip. Tiles run one at a time, like on a client.
+ */
+final class EmbeddedWorker implements Worker {
+
+    private final String name;
+    private final long connectedAt = System.nanoTime();
+    private final ThroughputMeter throughput = new ThroughputMeter();
+    private final BoxSmoother smoother = new BoxSmoother();
+    private final ExecutorService thread;
+    private BufferedImage region = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+
+    EmbeddedWorker(String name) {
+        this.name = name;
+        this.thread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread worker = new Thread(runnable, name);
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    @Override
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    @Override
+    public ThroughputMeter getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public boolean isEmbedded() {
+        return true;
+    }
+
+    @Override
+    public int getSlots() {
+        return 1;
+    }
+
+    @Override
+    public CompletableFuture<Long> smooth(TileJob job, Tile tile, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> smooth(job, tile), thread);
+    }
+
+    private long smooth(TileJob job, Tile tile) {
+        long startedAt = System.nanoTime();
+        int width = tile.getHaloWidth(), height = tile.getHaloHeight();
+        if (region.getWidth() != width || region.getHeight() != height) {
+            region = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        final BufferedImage tileImage = region;
+        IntRaster.copy(job.getOriginal(), tile.getHaloX(), tile.getHaloY(), tileImage, 0, 0, width, height);
+        Filter filter = job.getFilter();
+        long[] merge = new long[1];
+        smoother.smooth(IntRaster.pixels(tileImage), width, height, filter, 0, filter.getPassCount(), job.getBandRows(),
+                (fromRow, toRow) -> {
+                    long mergeStartedAt = System.nanoTime();
+                    job.mergeRows(tile, tileImage, fromRow, toRow);
+                    merge[0] += ServerMetrics.elapsedSince(mergeStartedAt);
+                });
+        long elapsed = ServerMetrics.elapsedSince(startedAt);
+        job.getTimings().record(this, Phase.COMPUTE, elapsed - merge[0]);
+        job.getTimings().record(this, Phase.MERGE, merge[0]);
+        return elapsed;
+    }
+
+    @Override
+    public void close() {
+        thread.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (embedded)";
+    }
+}
@@ -0,0 +1,17 @@
+package by.gstu.npa.cw.server;
+
+public enum ExecutionMode {
+    /**
+     * Tiles are smoothed by connected clients only.
+     */
+    REMOTE,
+    /**
+     * Tiles are smoothed by embedded workers on the server's own cores only; connected clients stay idle.
+     */
+    LOCAL,
+    /**
+     * Jobs with at most {@code smoothing.embeddedJobPixels} pixel passes stay on the embedded workers, larger ones are
+     * shared between the embedded workers and the clients.
+     */
+    HYBRID
+}
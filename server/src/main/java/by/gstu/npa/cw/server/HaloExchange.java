@@ -0,0 +1,310 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.FrameOutputStream;
+import by.gstu.npa.cw.core.IntRaster;
+import by.gstu.npa.cw.server.ServerMetrics.Phase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One smoothing job in {@link HaloMode#EXCHANGE} mode. Each strip is sent with the halo of a single pass; after every
+ * pass but the last, each client returns the core columns its neighbours need as halo ({@code after} columns on the
+ * left, {@code before} on the right), and the server hands every client its refreshed halo once all borders of the
+ * pass have arrived. Borders and halos are tagged with the job id and the pass number, the final cores with the
+ * pass count of the {@link Filter}; cores are streamed {@code bandRows} rows a frame and merged band by band.
+ * <p>
+ * Every pass of a strip has a deadline of {@code smoothing.stragglerFactor} times the time its client is expected to
+ * need, but at least {@code smoothing.exchangePassMillis}, so a client that hangs while still sending heartbeats fails
+ * the job instead of holding it. The clients that failed are named by {@link #getFailedWorkers()}; the others are
+ * brought back in step with {@link #resync}, which aborts the job on the client and drops whatever it still sends.
+ * <p>
+ * Phases are recorded per step of a strip, a pass or the final cores: the time from sending the strip its start or
+ * halo to the step's last frame is split into the compute time the client reports and transfer.
+ */
+final class HaloExchange {
+
+    private static final Logger LOGGER = LogManager.getLogger(HaloExchange.class);
+
+    private static final double TIMEOUT_FACTOR = Math.max(Double.parseDouble(System.getProperty("smoothing.stragglerFactor", "3")), 1);
+    private static final long PASS_TIMEOUT_MINIMUM = TimeUnit.MILLISECONDS.toNanos(Long.getLong("smoothing.exchangePassMillis", 10_000));
+
+    private final int id;
+    private final BufferedImage original;
+    private final BufferedImage smoothed;
+    private final List<Tile> strips;
+    private final List<WorkerConnection> workers;
+    private final Filter filter;
+    private final int passCount;
+    private final int bandRows;
+    private final SocketSmoothManager.ProgressCallback progress;
+    private final Executor executor;
+    private final ServerMetrics.JobTimings timings;
+    private final StepTimes[] steps;
+    private final Set<WorkerConnection> failed = ConcurrentHashMap.newKeySet();
+    private long startedAt;
+
+    HaloExchange(int id, BufferedImage original, BufferedImage smoothed, List<Tile> strips, List<WorkerConnection> workers,
+                 Filter filter, int bandRows, SocketSmoothManager.ProgressCallback progress, Executor executor,
+                 ServerMetrics.JobTimings timings) {
+        this.id = id;
+        this.original = original;
+        this.smoothed = smoothed;
+        this.strips = strips;
+        this.workers = workers;
+        this.filter = filter;
+        this.passCount = filter.getPassCount();
+        this.bandRows = Math.max(bandRows, 0);
+        this.progress = progress;
+        this.executor = executor;
+        this.timings = timings;
+        this.steps = new StepTimes[strips.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = new StepTimes(workers.get(i));
+        }
+    }
+
+    ServerMetrics.JobTimings getTimings() {
+        return timings;
+    }
+
+    CompletableFuture<Void> run() {
+        startedAt = System.nanoTime();
+        CompletableFuture<?>[] started = new CompletableFuture<?>[strips.size()];
+        for (int i = 0; i < strips.size(); i++) {
+            final int index = i;
+            started[i] = CompletableFuture.runAsync(() -> {
+                timings.record(workers.get(index), Phase.QUEUE, ServerMetrics.elapsedSince(timings.getCreatedAt()));
+                FrameOutputStream message = encodeStart(index);
+                steps[index].sentAt = System.nanoTime();
+                workers.get(index).send(message);
+            }, executor);
+        }
+        return CompletableFuture.allOf(started).thenCompose(ignored -> round(1))
+                .whenComplete((ignored, error) -> timings.finish());
+    }
+
+    private CompletableFuture<Void> round(int pass) {
+        CompletableFuture<?>[] received = new CompletableFuture<?>[strips.size()];
+        if (pass == passCount) {
+            for (int i = 0; i < strips.size(); i++) {
+                received[i] = watch(i, receiveCore(i, 0).thenRun(steps[i]::finish));
+            }
+            return CompletableFuture.allOf(received);
+        }
+        final BufferedImage[] borders = new BufferedImage[strips.size()];
+        for (int i = 0; i < strips.size(); i++) {
+            final int index = i;
+            if (sendLeft(i) + sendRight(i) > 0) {
+                received[i] = watch(i, workers.get(i).receive(id, pass)
+                        .thenAcceptAsync(frame -> borders[index] = steps[index].decode(frame), executor)
+                        .thenRun(steps[index]::finish));
+            } else {
+                received[i] = CompletableFuture.completedFuture(null);
+            }
+        }
+        return CompletableFuture.allOf(received).thenComposeAsync(ignored -> {
+            for (int i = 0; i < strips.size(); i++) {
+                sendHalo(i, pass, borders);
+            }
+            return round(pass + 1);
+        }, executor);
+    }
+
+    /**
+     * Returns the clients that broke, hung or sent something wrong; empty if the job failed on the server's side.
+     */
+    List<WorkerConnection> getFailedWorkers() {
+        return new ArrayList<>(failed);
+    }
+
+    /**
+     * Aborts the job on a client that is still healthy after the job failed. The future completes once the client
+     * has acknowledged it and every frame it sent for the job is dropped, so the client can take other work.
+     */
+    CompletableFuture<Void> resync(WorkerConnection worker) {
+        worker.discard(id);
+        CompletableFuture<ByteBuffer> acknowledged = worker.receive(id, Common.ABORTED_TAG);
+        FrameOutputStream message = new FrameOutputStream(8, worker.getBufferPool());
+        try {
+            message.write(Common.STATUS_ABORT);
+            Common.putIntToSocket(message, id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        worker.send(message);
+        return acknowledged.orTimeout(passTimeout(workers.indexOf(worker)), TimeUnit.NANOSECONDS)
+                .thenAccept(frame -> {
+                    worker.getBufferPool().release(frame);
+                    worker.discard(id);
+                });
+    }
+
+    /**
+     * Fails a step of the strip's client when it misses the deadline of a pass and remembers the client if the step
+     * fails.
+     */
+    private CompletableFuture<Void> watch(int index, CompletableFuture<Void> step) {
+        return step.orTimeout(passTimeout(index), TimeUnit.NANOSECONDS).whenComplete((ignored, error) -> {
+            if (error != null) {
+                failed.add(workers.get(index));
+            }
+        });
+    }
+
+    private long passTimeout(int index) {
+        Tile strip = strips.get(index);
+        ThroughputMeter throughput = workers.get(index).getThroughput();
+        if (!throughput.hasHistory()) {
+            return PASS_TIMEOUT_MINIMUM;
+        }
+        double expected = (double) strip.getHaloWidth() * strip.getHaloHeight() / throughput.getPixelsPerSecond() * 1e9;
+        return Math.max((long) (expected * TIMEOUT_FACTOR), PASS_TIMEOUT_MINIMUM);
+    }
+
+    private FrameOutputStream encodeStart(int index) {
+        Tile strip = strips.get(index);
+        WorkerConnection worker = workers.get(index);
+        long encodeStartedAt = System.nanoTime();
+        try {
+            FrameOutputStream message = new FrameOutputStream(64, worker.getBufferPool());
+            message.write(Common.STATUS_EXCHANGE);
+            Common.putIntToSocket(message, id);
+            Common.putFilter(message, filter);
+            Common.putIntToSocket(message, strip.getHaloBeforeX());
+            Common.putIntToSocket(message, strip.getHaloAfterX());
+            Common.putIntToSocket(message, sendLeft(index));
+            Common.putIntToSocket(message, sendRight(index));
+            Common.putIntToSocket(message, bandRows);
+            message.writeFrame(id, 0, 0, original,
+                    strip.getHaloX(), strip.getHaloY(), strip.getHaloWidth(), strip.getHaloHeight(), worker.getCodec());
+            worker.expect(strip.getHaloWidth(), strip.getHaloHeight());
+            timings.record(worker, Phase.ENCODE, ServerMetrics.elapsedSince(encodeStartedAt));
+            return message;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void sendHalo(int index, int pass, BufferedImage[] borders) {
+        Tile strip = strips.get(index);
+        int haloLeft = strip.getHaloBeforeX(), haloRight = strip.getHaloAfterX(), height = strip.getHeight();
+        if (haloLeft + haloRight == 0) {
+            return;
+        }
+        long encodeStartedAt = System.nanoTime();
+        BufferedImage halo = new BufferedImage(haloLeft + haloRight, height, BufferedImage.TYPE_INT_RGB);
+        if (haloLeft > 0) {
+            IntRaster.copy(borders[index - 1], sendLeft(index - 1), 0, halo, 0, 0, haloLeft, height);
+        }
+        if (haloRight > 0) {
+            IntRaster.copy(borders[index + 1], 0, 0, halo, haloLeft, 0, haloRight, height);
+        }
+        WorkerConnection worker = workers.get(index);
+        try {
+            FrameOutputStream message = new FrameOutputStream(Common.FRAME_HEADER_LENGTH + 5, worker.getBufferPool());
+            message.write(Common.STATUS_HALO);
+            message.writeFrame(id, pass, 0, halo, worker.getCodec());
+            timings.record(worker, Phase.ENCODE, ServerMetrics.elapsedSince(encodeStartedAt));
+            steps[index].sentAt = System.nanoTime();
+            worker.send(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CompletableFuture<Void> receiveCore(int index, int band) {
+        WorkerConnection worker = workers.get(index);
+        StepTimes step = steps[index];
+        return worker.receive(id, passCount)
+                .thenAcceptAsync(frame -> {
+                    BufferedImage rows = step.decode(frame);
+                    long mergeStartedAt = System.nanoTime();
+                    merge(index, band, rows);
+                    step.merge += ServerMetrics.elapsedSince(mergeStartedAt);
+                }, executor)
+                .thenCompose(ignored -> (band + 1 < Common.bandCount(strips.get(index).getHeight(), bandRows))
+                        ? receiveCore(index, band + 1)
+                        : CompletableFuture.completedFuture(null));
+    }
+
+    private void merge(int index, int band, BufferedImage rows) {
+        Tile strip = strips.get(index);
+        int rowsPerBand = (bandRows > 0) ? bandRows : strip.getHeight(), fromRow = band * rowsPerBand;
+        if (rows.getWidth() != strip.getWidth() || rows.getHeight() != Math.min(rowsPerBand, strip.getHeight() - fromRow)) {
+            throw new UncheckedIOException(new IOException("Client " + workers.get(index) + " returned "
+                    + rows.getWidth() + "x" + rows.getHeight() + " for band " + band + " of " + strip));
+        }
+        IntRaster.copy(rows, 0, 0, smoothed, strip.getX(), strip.getY() + fromRow, rows.getWidth(), rows.getHeight());
+        if (progress != null) {
+            progress.progress(smoothed, strip.getX(), strip.getY() + fromRow, rows.getWidth(), rows.getHeight());
+        }
+        if (fromRow + rows.getHeight() == strip.getHeight()) {
+            workers.get(index).getThroughput().record((long) strip.getHaloWidth() * strip.getHaloHeight() * passCount,
+                    System.nanoTime() - startedAt);
+            LOGGER.debug(strip + " is smoothed by " + workers.get(index));
+        }
+    }
+
+    private int sendLeft(int index) {
+        return (index > 0) ? strips.get(index - 1).getHaloAfterX() : 0;
+    }
+
+    private int sendRight(int index) {
+        return (index < strips.size() - 1) ? strips.get(index + 1).getHaloBeforeX() : 0;
+    }
+
+
+    /**
+     * Phase times of the current step of a strip, summed over the frames of the step. A strip without halo goes on to
+     * its next pass at once, so its next step starts when the current one ends.
+     */
+    private final class StepTimes {
+
+        private final WorkerConnection worker;
+        private long sentAt;
+        private long receivedAt;
+        private long compute;
+        private long decode;
+        private long merge;
+
+        private StepTimes(WorkerConnection worker) {
+            this.worker = worker;
+        }
+
+        private BufferedImage decode(ByteBuffer frame) {
+            long decodeStartedAt = System.nanoTime();
+            receivedAt = decodeStartedAt;
+            compute += ServerMetrics.micros(Common.frameComputeTime(frame));
+            BufferedImage image = TileJob.decode(worker, frame);
+            decode += ServerMetrics.elapsedSince(decodeStartedAt);
+            return image;
+        }
+
+        private void finish() {
+            timings.record(worker, Phase.COMPUTE, compute);
+            timings.record(worker, Phase.TRANSFER, Math.max(receivedAt - sentAt - compute, 0));
+            timings.record(worker, Phase.DECODE, decode);
+            if (merge > 0) {
+                timings.record(worker, Phase.MERGE, merge);
+            }
+            sentAt = receivedAt;
+            compute = 0;
+            decode = 0;
+            merge = 0;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package by.gstu.npa.cw.server;
+
+public enum HaloMode {
+    /**
+     * Every tile carries the halo for all passes and is smoothed in one round trip.
+     */
+    FULL,
+    /**
+     * The image is cut into one strip per client with a single-pass halo; after every pass the clients swap their
+     * border columns through the server, so the transfer volume does not grow with the repeat count.
+     */
+    EXCHANGE,
+    /**
+     * {@link #EXCHANGE} when the full halo would be at least half a tile wide and two or more clients are idle,
+     * otherwise {@link #FULL}.
+     */
+    AUTO
+}
@@ -0,0 +1,88 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.RawImageFile;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Reads an image a band of rows at a time. Raw files ({@code .raw}, see {@link RawImageFile}) are memory mapped; other
+ * formats are read through {@link ImageIO} with a source region, which keeps the memory bounded but makes sequential
+ * formats such as PNG decode from the start for every band.
+ */
+final class ImageBandReader implements AutoCloseable {
+
+    private final RawImageFile raw;
+    private final ImageInputStream stream;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    private ImageBandReader(RawImageFile raw, ImageInputStream stream, ImageReader reader, int width, int height) {
+        this.raw = raw;
+        this.stream = stream;
+        this.reader = reader;
+        this.width = width;
+        this.height = height;
+    }
+
+    static ImageBandReader open(File file) throws IOException {
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith(".raw")) {
+            RawImageFile raw = RawImageFile.open(file.toPath());
+            return new ImageBandReader(raw, null, null, raw.getWidth(), raw.getHeight());
+        }
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new IOException("Image " + file + " cannot be opened");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("Unsupported image format: " + file);
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(stream, false, true);
+            return new ImageBandReader(null, stream, reader, reader.getWidth(0), reader.getHeight(0));
+        } catch (IOException e) {
+            reader.dispose();
+            stream.close();
+            throw e;
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    BufferedImage read(int y, int rows) throws IOException {
+        if (raw != null) {
+            return raw.read(y, rows);
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, y, width, rows));
+        return reader.read(0, param);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raw != null) {
+            raw.close();
+        } else {
+            reader.dispose();
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.server.ServerMetrics.Phase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Shares the connected clients between all running {@link TileJob}s. Jobs with pending tiles take turns in a
+ * round-robin queue, one tile per turn, so a small image is not stuck behind a large one. Every free slot of a worker
+ * gets the next tile, and a client takes {@code smoothing.pipelineDepth} tiles more than it smooths at once, so its
+ * next request is already there when a tile is done; once a response is merged the slot returns to the registry and
+ * is scheduled again. Scheduling runs on whichever thread asks for it, but never on two at once.
+ * <p>
+ * Every tile gets a deadline of {@code smoothing.stragglerFactor} times the time its client, or the fleet on average,
+ * is expected to need for it and the tiles queued ahead of it, but at least {@code smoothing.stragglerMillis}. A
+ * client left idle with no pending tiles runs a copy of the most overdue tile, so one slow or hung client does not
+ * hold up the job; tiles of failed clients are queued again, and a tile that keeps failing fails its job. A failed
+ * client is disconnected, while an embedded worker stays registered, since its failure belongs to the tile. A result arrives in bands that are merged one by one;
+ * the slot is released after the last. Embedded workers are checked out first and are the only ones that take tiles
+ * of jobs kept to them; a job that no registered worker may run any more is failed instead of waiting forever.
+ */
+final class JobScheduler {
+
+    private static final Logger LOGGER = LogManager.getLogger(JobScheduler.class);
+
+    private final WorkerRegistry registry;
+    private final Consumer<Worker> failedWorkerHandler;
+    private final Executor executor;
+    private final Queue<TileJob> jobs = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<Attempt> attempts = ConcurrentHashMap.newKeySet();
+    private final ThroughputMeter fleetThroughput = new ThroughputMeter();
+    private final AtomicLong speculations = new AtomicLong();
+    private final double stragglerFactor = Math.max(Double.parseDouble(System.getProperty("smoothing.stragglerFactor", "3")), 1);
+    private final long stragglerMinimum = TimeUnit.MILLISECONDS.toNanos(Long.getLong("smoothing.stragglerMillis", 500));
+
+    JobScheduler(WorkerRegistry registry, Consumer<Worker> failedWorkerHandler, Executor executor) {
+        this.registry = registry;
+        this.failedWorkerHandler = failedWorkerHandler;
+        this.executor = executor;
+    }
+
+    CompletableFuture<BufferedImage> submit(TileJob job) {
+        if (!job.getResult().isDone()) {
+            enqueue(job);
+            schedule();
+        }
+        return job.getResult();
+    }
+
+    int jobCount() {
+        return jobs.size();
+    }
+
+    int pendingTileCount() {
+        int count = 0;
+        for (TileJob job : jobs) {
+            count += job.pendingCount();
+        }
+        return count;
+    }
+
+    long speculationCount() {
+        return speculations.get();
+    }
+
+    void schedule() {
+        if (requests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            drain();
+            missed = requests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        while (!jobs.isEmpty() || hasOverdue()) {
+            Worker worker = registry.checkOut();
+            if (worker == null) {
+                failStalled();
+                return;
+            }
+            TileJob job;
+            Tile tile = null;
+            List<TileJob> skipped = null;
+            while ((job = jobs.poll()) != null) {
+                if (job.isFailed()) {
+                    job.unmarkScheduled();
+                    continue;
+                }
+                if (!job.accepts(worker)) {
+                    if (skipped == null) {
+                        skipped = new ArrayList<>();
+                    }
+                    skipped.add(job);
+                    continue;
+                }
+                tile = job.poll();
+                if (job.pendingCount() > 0) {
+                    jobs.add(job);
+                } else {
+                    job.unmarkScheduled();
+                    if (job.pendingCount() > 0) {
+                        enqueue(job);
+                    }
+                }
+                if (tile != null) {
+                    break;
+                }
+            }
+            if (skipped != null) {
+                jobs.addAll(skipped);
+            }
+            if (tile == null) {
+                Attempt straggler = (registry.inFlight(worker) == 1) ? speculate(worker) : null;
+                if (straggler == null) {
+                    registry.release(worker);
+                    failStalled();
+                    return;
+                }
+                LOGGER.info(straggler.tile + " of " + straggler.job + " is overdue on " + straggler.worker
+                        + ", a copy is sent to " + worker);
+                speculations.incrementAndGet();
+                job = straggler.job;
+                tile = straggler.tile;
+            }
+            dispatch(worker, job, tile);
+        }
+    }
+
+    private void dispatch(Worker worker, TileJob job, Tile tile) {
+        ServerMetrics.JobTimings timings = job.getTimings();
+        timings.record(worker, Phase.QUEUE, ServerMetrics.elapsedSince(timings.getCreatedAt()));
+        long pixels = (long) tile.getHaloWidth() * tile.getHaloHeight() * job.getFilter().getPassCount();
+        Attempt attempt = new Attempt(job, tile, worker, deadline(worker, pixels * Math.max(registry.inFlight(worker), 1)));
+        attempts.add(attempt);
+        worker.smooth(job, tile, executor).whenComplete((elapsed, error) -> {
+            attempts.remove(attempt);
+            if (error != null) {
+                LOGGER.warn("Worker " + worker + " has failed on " + tile + " of " + job, error);
+                if (job.retry(tile)) {
+                    enqueue(job);
+                } else {
+                    jobs.remove(job);
+                    job.fail(new IllegalStateException(tile + " of " + job + " has failed "
+                            + TileJob.MAX_FAILURES + " times", error));
+                }
+                if (worker.isEmbedded()) {
+                    registry.release(worker);
+                } else {
+                    failedWorkerHandler.accept(worker);
+                }
+            } else {
+                long finishedAt = System.nanoTime();
+                fleetThroughput.record(pixels, worker.getThroughput().record(pixels, finishedAt - elapsed, finishedAt));
+                registry.release(worker);
+                if (!job.complete(worker, tile)) {
+                    LOGGER.debug(tile + " of " + job + " from " + worker + " is dropped, its copy was faster");
+                }
+            }
+            schedule();
+        });
+    }
+
+    /**
+     * Returns the deadline of smoothing {@code pixels} on the worker and wakes the scheduler when it passes, or
+     * {@link Long#MAX_VALUE} while nothing has been measured yet.
+     */
+    private long deadline(Worker worker, long pixels) {
+        double rate = worker.getThroughput().hasHistory()
+                ? worker.getThroughput().getPixelsPerSecond()
+                : fleetThroughput.getPixelsPerSecond();
+        if (rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long delay = Math.max((long) (pixels / rate * 1e9 * stragglerFactor), stragglerMinimum);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor).execute(this::schedule);
+        return System.nanoTime() + delay;
+    }
+
+    private boolean hasOverdue() {
+        long now = System.nanoTime();
+        for (Attempt attempt : attempts) {
+            if (attempt.isOverdue(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts a copy of the most overdue tile that {@code worker} may run and does not run already, or returns
+     * {@code null}.
+     */
+    private Attempt speculate(Worker worker) {
+        long now = System.nanoTime();
+        Attempt straggler = null;
+        for (Attempt attempt : attempts) {
+            if (attempt.worker != worker && attempt.job.accepts(worker) && attempt.isOverdue(now)
+                    && (straggler == null || attempt.deadline < straggler.deadline)) {
+                straggler = attempt;
+            }
+        }
+        return (straggler != null && straggler.job.speculate(straggler.tile)) ? straggler : null;
+    }
+
+    private void enqueue(TileJob job) {
+        if (!job.isFailed() && job.markScheduled()) {
+            jobs.add(job);
+        }
+    }
+
+    /**
+     * Fails the queued jobs that have nothing in flight and that no registered worker may run.
+     */
+    private void failStalled() {
+        for (TileJob job : jobs) {
+            if (job.inFlightCount() == 0 && !registry.any(job::accepts) && jobs.remove(job)) {
+                job.abandon();
+            }
+        }
+    }
+
+
+    private static final class Attempt {
+
+        private final TileJob job;
+        private final Tile tile;
+        private final Worker worker;
+        private final long deadline;
+
+        private Attempt(TileJob job, Tile tile, Worker worker, long deadline) {
+            this.job = job;
+            this.tile = tile;
+            this.worker = worker;
+            this.deadline = deadline;
+        }
+
+        private boolean isOverdue(long now) {
+            return deadline != Long.MAX_VALUE && now - deadline >= 0 && job.canSpeculate(tile);
+        }
+    }
+}
@@ -1,33 +1,48 @@
 package by.gstu.npa.cw.server;
 
+import by.gstu.npa.cw.core.Filter;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.GridPane;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.imageio.ImageIO;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
+import java.util.Queue;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public final class MainController {
 
     private static final Logger LOGGER = LogManager.getLogger(MainController.class);
 
+    private static final double PREVIEW_INTERVAL = 100;
+
     private ResourceBundle strings;
     private Stage stage;
 
     private SocketSmoothManager socketSmoothManager;
     private BufferedImage choosedImage;
     private BufferedImage smoothedImage;
+    private final Queue<Rectangle> previewRegions = new ConcurrentLinkedQueue<>();
+    private volatile BufferedImage previewSource;
+    private Timeline previewTimeline;
 
     @FXML
     private GridPane imageLayout;
@@ -73,10 +88,12 @@ public final class MainController {
         strings = ResourceBundle.getBundle("strings", locale);
         stage.setTitle(strings.getString("app_name"));
         setTextToUi();
-        clientsCountInput.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 20));
         kernelSizeInput.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(3, 29, 3, 2));
         repeatCountInput.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 20));
         socketSmoothManager = new SocketSmoothManager();
+        int minClients = (socketSmoothManager.getExecutionMode() != ExecutionMode.REMOTE
+                && socketSmoothManager.getEmbeddedWorkerCount() > 0) ? 0 : 1;
+        clientsCountInput.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(minClients, 20, 1));
         socketSmoothManager.setClientCountCallback(clients ->
                 Platform.runLater(() -> activeClientsLabel.setText(String.valueOf(clients))));
 
@@ -140,15 +157,65 @@ public final class MainController {
         chooseImageButton.setDisable(true);
         smoothImageButton.setDisable(true);
         saveImageButton.setDisable(true);
-        socketSmoothManager.smoothImage(choosedImage, clients, kernelSize, repeatCount, (image, processingTime) ->
+        startPreview();
+        final BufferedImage source = choosedImage;
+        socketSmoothManager.smoothImage(source, clients, Filter.legacy(kernelSize, repeatCount), (image, processingTime) ->
                 Platform.runLater(() -> {
+                    finishSmoothing();
                     smoothedImage = image;
                     imageView.setImage(SwingFXUtils.toFXImage(image, null));
                     processingTimeLabel.setText(String.valueOf(processingTime * 0.000_001));
-                    chooseImageButton.setDisable(false);
-                    smoothImageButton.setDisable(false);
-                    saveImageButton.setDisable(false);
-                }));
+                }), (image, x, y, width, height) -> {
+            previewSource = image;
+            previewRegions.add(new Rectangle(x, y, width, height));
+        }, error -> Platform.runLater(() -> {
+            finishSmoothing();
+            smoothedImage = null;
+            imageView.setImage(SwingFXUtils.toFXImage(source, null));
+            showAlert("no_smoothed_image");
+        }));
+    }
+
+    private void finishSmoothing() {
+        stopPreview();
+        chooseImageButton.setDisable(false);
+        smoothImageButton.setDisable(false);
+        saveImageButton.setDisable(false);
+    }
+
+    /**
+     * Shows the chosen image and paints smoothed regions over it as they arrive, a few times a second, so a large
+     * image shows progress long before it is done.
+     */
+    private void startPreview() {
+        stopPreview();
+        WritableImage preview = SwingFXUtils.toFXImage(choosedImage, null);
+        imageView.setImage(preview);
+        previewTimeline = new Timeline(new KeyFrame(Duration.millis(PREVIEW_INTERVAL), event -> paintPreview(preview)));
+        previewTimeline.setCycleCount(Animation.INDEFINITE);
+        previewTimeline.play();
+    }
+
+    private void paintPreview(WritableImage preview) {
+        Rectangle region;
+        int[] row = new int[0];
+        while ((region = previewRegions.poll()) != null) {
+            if (row.length < region.width) {
+                row = new int[region.width];
+            }
+            for (int y = region.y; y < region.y + region.height; y++) {
+                previewSource.getRGB(region.x, y, region.width, 1, row, 0, region.width);
+                preview.getPixelWriter().setPixels(region.x, y, region.width, 1, PixelFormat.getIntArgbInstance(), row, 0, region.width);
+            }
+        }
+    }
+
+    private void stopPreview() {
+        if (previewTimeline != null) {
+            previewTimeline.stop();
+            previewTimeline = null;
+        }
+        previewRegions.clear();
     }
 
     @FXML
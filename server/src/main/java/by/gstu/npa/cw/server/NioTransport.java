@@ -0,0 +1,182 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.BufferPool;
+import by.gstu.npa.cw.core.ImageCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking transport for worker connections: a fixed set of I/O threads, each owning a {@link Selector}. The first
+ * thread also accepts new connections and spreads them over all threads, so the thread count does not depend on the
+ * number of connected clients.
+ */
+final class NioTransport implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(NioTransport.class);
+
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final ServerSocketChannel serverChannel;
+    private final IoThread[] ioThreads;
+    private final Supplier<List<ImageCodec>> preferredCodecs;
+    private final BufferPool bufferPool;
+    private final Listener listener;
+    private int nextIoThread;
+
+    NioTransport(int port, int ioThreadCount, Supplier<List<ImageCodec>> preferredCodecs, BufferPool bufferPool,
+                 Listener listener) throws IOException {
+        this.preferredCodecs = preferredCodecs;
+        this.bufferPool = bufferPool;
+        this.listener = listener;
+        this.ioThreads = new IoThread[Math.max(ioThreadCount, 1)];
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(i);
+        }
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(ioThreads[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            for (IoThread ioThread : ioThreads) {
+                ioThread.selector.close();
+            }
+            throw e;
+        }
+        for (IoThread ioThread : ioThreads) {
+            ioThread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (IoThread ioThread : ioThreads) {
+            ioThread.execute(ioThread::shutdown);
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.error(e);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoThread ioThread = ioThreads[nextIoThread];
+                nextIoThread = (nextIoThread + 1) % ioThreads.length;
+                final SocketChannel accepted = channel;
+                ioThread.execute(() -> register(ioThread, accepted));
+            }
+        } catch (IOException e) {
+            LOGGER.info(e);
+        }
+    }
+
+    private void register(IoThread ioThread, SocketChannel channel) {
+        try {
+            WorkerConnection connection = new WorkerConnection(channel, ioThread, preferredCodecs.get(), bufferPool, listener);
+            connection.register(channel.register(ioThread.selector, SelectionKey.OP_READ, connection));
+        } catch (IOException e) {
+            LOGGER.warn("Connection " + channel + " could not be registered", e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+        }
+    }
+
+
+    interface Listener {
+        void connected(WorkerConnection connection);
+
+        void disconnected(WorkerConnection connection);
+    }
+
+
+    final class IoThread extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        private IoThread(int index) throws IOException {
+            super("smoothing-io-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inIoThread() {
+            return Thread.currentThread() == this;
+        }
+
+        private void shutdown() {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof WorkerConnection) {
+                    ((WorkerConnection) key.attachment()).close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((WorkerConnection) key.attachment()).onReady(key);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof WorkerConnection) {
+                            ((WorkerConnection) key.attachment()).checkTimeouts(now);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                LOGGER.error("I/O thread " + getName() + " has failed", e);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOGGER.error(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.ImageCodec;
+import by.gstu.npa.cw.core.IntRaster;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Smoothed pixels addressed by a SHA-256 hash of the source pixels, the region that is kept and the smoothing
+ * parameters, so equal inputs hit regardless of where they come from. The least recently used entries are evicted
+ * from memory past a byte budget; with a directory, every entry is also stored there as an
+ * {@link ImageCodec#RAW_DEFLATE} frame and survives restarts. Whole images are keyed by their content hash and the
+ * {@link Filter#getKey() filter key}, so the result of fewer passes of a repeatable filter can be found and continued.
+ * Packed integer images are hashed straight from their pixel arrays.
+ */
+public final class ResultCache {
+
+    private static final Logger LOGGER = LogManager.getLogger(ResultCache.class);
+
+    private final long capacity;
+    private final Path directory;
+    private final LinkedHashMap<String, BufferedImage> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong partialHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity  bytes of pixels kept in memory
+     * @param directory directory of the on-disk tier, or {@code null} to keep entries in memory only
+     */
+    public ResultCache(long capacity, Path directory) throws IOException {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Cache capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        this.directory = directory;
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getPartialHits() {
+        return partialHits.get();
+    }
+
+    /**
+     * Returns the cached image, which must not be modified, or {@code null}.
+     */
+    BufferedImage get(String key) {
+        BufferedImage image = find(key);
+        if (image != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return image;
+    }
+
+    /**
+     * Returns the cached result of the most passes of {@code filter}, but fewer than all, over the image with the given
+     * content hash, or {@code null}. Only filters that can be {@link Filter#withPassCount repeated} are looked up.
+     */
+    Intermediate getClosest(String content, Filter filter) {
+        for (int passes = filter.getPassCount() - 1; passes > 0; passes--) {
+            Filter prefix = filter.withPassCount(passes);
+            if (prefix == null) {
+                return null;
+            }
+            BufferedImage image = find(imageKey(content, prefix));
+            if (image != null) {
+                partialHits.incrementAndGet();
+                return new Intermediate(passes, image);
+            }
+        }
+        return null;
+    }
+
+    private BufferedImage find(String key) {
+        BufferedImage image;
+        synchronized (entries) {
+            image = entries.get(key);
+        }
+        if (image == null && directory != null) {
+            image = load(key);
+            if (image != null) {
+                diskHits.incrementAndGet();
+                remember(key, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Stores an image the caller no longer modifies.
+     */
+    void put(String key, BufferedImage image) {
+        remember(key, image);
+        if (directory != null) {
+            store(key, image);
+        }
+    }
+
+    private void remember(String key, BufferedImage image) {
+        long bytes = sizeOf(image);
+        if (bytes > capacity) {
+            return;
+        }
+        synchronized (entries) {
+            BufferedImage previous = entries.put(key, image);
+            size += bytes - ((previous != null) ? sizeOf(previous) : 0);
+            Iterator<Map.Entry<String, BufferedImage>> eldest = entries.entrySet().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                size -= sizeOf(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+    }
+
+    private BufferedImage load(String key) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(directory.resolve(key)))) {
+            return Common.receive(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.warn("Cache entry " + key + " could not be read", e);
+            return null;
+        }
+    }
+
+    private void store(String key, BufferedImage image) {
+        Path file = directory.resolve(key);
+        if (Files.exists(file)) {
+            return;
+        }
+        try {
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                Common.send(out, image, ImageCodec.RAW_DEFLATE);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Cache entry " + key + " could not be stored", e);
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    /**
+     * Key of smoothing the {@code width x height} region at {@code x, y} of {@code image} and keeping its
+     * {@code coreWidth x coreHeight} part at {@code coreX, coreY} relative to the region.
+     */
+    static String key(BufferedImage image, int x, int y, int width, int height,
+                      int coreX, int coreY, int coreWidth, int coreHeight, Filter filter) {
+        return digest(image, x, y, width, height, filter.getKey(), coreX, coreY, coreWidth, coreHeight);
+    }
+
+    static String contentHash(BufferedImage image) {
+        return digest(image, 0, 0, image.getWidth(), image.getHeight(), "");
+    }
+
+    static String imageKey(String content, Filter filter) {
+        return content + "-" + filter.getKey();
+    }
+
+    private static String digest(BufferedImage image, int x, int y, int width, int height, String filter, int... parameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer header = ByteBuffer.allocate(8 + parameters.length * 4);
+        header.putInt(width).putInt(height);
+        for (int parameter : parameters) {
+            header.putInt(parameter);
+        }
+        digest.update(header.array());
+        digest.update(filter.getBytes(StandardCharsets.UTF_8));
+        int[] data = IntRaster.pixels(image);
+        int[] pixels = (data != null) ? data : new int[width];
+        int stride = (data != null) ? IntRaster.stride(image) : 0;
+        int offset = (data != null) ? IntRaster.offset(image, x, y) : 0;
+        ByteBuffer row = ByteBuffer.allocate(width * 4);
+        IntBuffer values = row.asIntBuffer();
+        for (int j = 0; j < height; j++) {
+            if (data == null) {
+                image.getRGB(x, y + j, width, 1, pixels, 0, width);
+            }
+            int start = offset + j * stride;
+            for (int i = 0; i < width; i++) {
+                values.put(i, pixels[start + i] & 0xFFFFFF);
+            }
+            digest.update(row.array());
+        }
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+
+    static final class Intermediate {
+
+        private final int passCount;
+        private final BufferedImage image;
+
+        private Intermediate(int passCount, BufferedImage image) {
+            this.passCount = passCount;
+            this.image = image;
+        }
+
+        int getPassCount() {
+            return passCount;
+        }
+
+        BufferedImage getImage() {
+            return image;
+        }
+    }
+}
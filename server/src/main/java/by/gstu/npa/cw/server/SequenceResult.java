@@ -0,0 +1,78 @@
+package by.gstu.npa.cw.server;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of a smoothed frame sequence. The sustained rate counts from the first frame written to the
+ * last, so it leaves out the time the pipeline takes to fill; the latency of a frame runs from reading it to writing
+ * its result.
+ */
+public final class SequenceResult {
+
+    private final int frames;
+    private final int failed;
+    private final long elapsed;
+    private final long firstWrittenAt;
+    private final long lastWrittenAt;
+    private final LatencyHistogram latency;
+
+    SequenceResult(int frames, int failed, long elapsed, long firstWrittenAt, long lastWrittenAt, LatencyHistogram latency) {
+        this.frames = frames;
+        this.failed = failed;
+        this.elapsed = elapsed;
+        this.firstWrittenAt = firstWrittenAt;
+        this.lastWrittenAt = lastWrittenAt;
+        this.latency = latency;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    public double getFramesPerSecond() {
+        return frames / seconds(elapsed);
+    }
+
+    /**
+     * Returns the rate between the first and the last written frame, or the overall rate for fewer than two frames.
+     */
+    public double getSustainedFramesPerSecond() {
+        return (frames > 1 && lastWrittenAt != firstWrittenAt)
+                ? (frames - 1) / seconds(lastWrittenAt - firstWrittenAt)
+                : getFramesPerSecond();
+    }
+
+    public long getLatencyQuantile(double quantile) {
+        return (quantile >= 1) ? latency.getMax() : latency.getQuantile(quantile);
+    }
+
+    public long getMeanLatency() {
+        return (latency.getCount() > 0) ? latency.getSum() / latency.getCount() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d frame(s) smoothed, %d failed in %.2f s: %.2f fps, %.2f fps sustained, "
+                        + "latency mean %d ms, p50 %d ms, p95 %d ms, max %d ms",
+                frames, failed, seconds(elapsed), getFramesPerSecond(), getSustainedFramesPerSecond(),
+                millis(getMeanLatency()), millis(getLatencyQuantile(0.5)), millis(getLatencyQuantile(0.95)),
+                millis(getLatencyQuantile(1)));
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
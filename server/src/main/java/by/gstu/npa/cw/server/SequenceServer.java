@@ -0,0 +1,263 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Filter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headless server that smooths an ordered sequence of frames, such as numbered captures of a camera. Up to
+ * {@code smoothing.sequenceWindow} frames are in flight at once, so the tiles of the next frames keep the workers busy
+ * while a frame finishes; results pass through a reorder buffer and reach the sink in frame order, one at a time.
+ * Frames are smoothed by tiles only, since a halo exchange would hold the clients for a single frame.
+ */
+public final class SequenceServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(SequenceServer.class);
+
+    private static final Pattern FRAME_NUMBER = Pattern.compile("(\\d{1,18})\\D*$");
+
+    /**
+     * Orders files by the last number in their names, so {@code frame9} comes before {@code frame10}.
+     */
+    static final Comparator<File> FRAME_ORDER = Comparator.comparingLong(SequenceServer::frameNumber)
+            .thenComparing(File::getName);
+
+    public static void main(String[] args) {
+        System.out.println("Enter '-h' or '-help' to get information about the arguments.");
+        if (args.length < 2 || "-h".equals(args[0]) || "-help".equals(args[0])) {
+            System.out.println("The first argument is a directory of numbered frames or a text file with one frame path per line, in order.");
+            System.out.println("The second argument is the output directory, smoothed frames are written there as PNG in frame order.");
+            BatchServer.printFilterUsage();
+            return;
+        }
+        Filter filter;
+        try {
+            filter = BatchServer.filterArgument(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        try (SequenceServer server = new SequenceServer(Integer.getInteger("smoothing.sequenceWindow", 4))) {
+            List<File> frames = listFrames(new File(args[0]));
+            File outputDirectory = new File(args[1]);
+            Files.createDirectories(outputDirectory.toPath());
+            int clientsCount = (args.length > 4) ? Integer.parseInt(args[4]) : 1;
+            server.run(files(frames), directory(outputDirectory, frames), filter, clientsCount);
+        } catch (Exception e) {
+            LOGGER.fatal(e);
+        }
+    }
+
+    /**
+     * Lists the frames of a directory by frame number, or the lines of a text file in their order.
+     */
+    static List<File> listFrames(File input) throws IOException {
+        List<File> frames = BatchServer.listInput(input);
+        if (input.isDirectory()) {
+            frames.sort(FRAME_ORDER);
+        }
+        return frames;
+    }
+
+    private static long frameNumber(File file) {
+        Matcher matcher = FRAME_NUMBER.matcher(file.getName());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Reads the files in order.
+     */
+    public static FrameSource files(List<File> frames) {
+        Iterator<File> iterator = frames.iterator();
+        return () -> {
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            try {
+                return BatchServer.decode(iterator.next());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
+    /**
+     * Writes every frame into the directory as a PNG named after its source file.
+     */
+    public static FrameSink directory(File outputDirectory, List<File> frames) {
+        return (index, frame) -> {
+            try {
+                BatchServer.encode(frame, new File(outputDirectory, BatchServer.outputName(frames.get(index))));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
+    private final SocketSmoothManager smoothManager = new SocketSmoothManager();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final int window;
+
+    public SequenceServer(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Sequence window must be positive: " + window);
+        }
+        this.window = window;
+        smoothManager.setHaloMode(HaloMode.FULL);
+    }
+
+    public SocketSmoothManager getSmoothManager() {
+        return smoothManager;
+    }
+
+    /**
+     * Smooths every frame of the source into the sink, in order, and reports the rate and latency. A frame that cannot
+     * be smoothed or written is logged and skipped; an error of the source ends the sequence once the frames read so
+     * far are written.
+     */
+    public SequenceResult run(FrameSource source, FrameSink sink, Filter filter, int clientsCount)
+            throws IOException, InterruptedException {
+        LOGGER.info("Waiting for " + clientsCount + " client(s) to smooth a sequence, " + window + " frame(s) at once");
+        smoothManager.awaitClients(clientsCount).join();
+        Semaphore permits = new Semaphore(window);
+        ReorderBuffer buffer = new ReorderBuffer(sink, permits);
+        long startedAt = System.nanoTime();
+        int index = 0;
+        permits.acquire();
+        try {
+            BufferedImage image;
+            while ((image = source.next()) != null) {
+                final int frameIndex = index++;
+                final long readAt = System.nanoTime();
+                smoothManager.submit(image, filter).whenComplete((result, error) -> {
+                    if (error != null) {
+                        LOGGER.warn("Frame " + frameIndex + " has not been smoothed", error);
+                    }
+                    buffer.offer(new Frame(frameIndex, readAt, (error == null) ? result.getImage() : null));
+                });
+                permits.acquire();
+            }
+        } finally {
+            permits.release();
+            permits.acquire(window);
+        }
+        SequenceResult result = new SequenceResult(buffer.written, buffer.failed, System.nanoTime() - startedAt,
+                buffer.firstWrittenAt, buffer.lastWrittenAt, buffer.latency);
+        LOGGER.info(result);
+        System.out.println(result);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        smoothManager.close();
+    }
+
+
+    /**
+     * Supplies the frames of a sequence in order.
+     */
+    public interface FrameSource {
+        /**
+         * Returns the next frame, or {@code null} after the last one.
+         */
+        BufferedImage next() throws IOException;
+    }
+
+    /**
+     * Receives smoothed frames in order from a single thread; skipped frames leave gaps in the indices.
+     */
+    public interface FrameSink {
+        void write(int index, BufferedImage frame) throws IOException;
+    }
+
+    private static final class Frame {
+
+        private final int index;
+        private final long readAt;
+        private final BufferedImage image;
+
+        private Frame(int index, long readAt, BufferedImage image) {
+            this.index = index;
+            this.readAt = readAt;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Holds frames that finished ahead of an earlier one. Every finished frame schedules a drain on the writer thread,
+     * which writes the frames that are next in order and returns a window permit for each, so the buffer never holds
+     * more than the window. The counters are only touched by the writer thread and read after all permits are back.
+     */
+    private final class ReorderBuffer {
+
+        private final FrameSink sink;
+        private final Semaphore permits;
+        private final Map<Integer, Frame> ready = new ConcurrentHashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private int next;
+        private int written;
+        private int failed;
+        private long firstWrittenAt;
+        private long lastWrittenAt;
+
+        private ReorderBuffer(FrameSink sink, Semaphore permits) {
+            this.sink = sink;
+            this.permits = permits;
+        }
+
+        private void offer(Frame frame) {
+            ready.put(frame.index, frame);
+            writer.execute(this::drain);
+        }
+
+        private void drain() {
+            Frame frame;
+            while ((frame = ready.remove(next)) != null) {
+                next++;
+                try {
+                    if (frame.image == null) {
+                        failed++;
+                        continue;
+                    }
+                    write(frame);
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                    LOGGER.warn("Frame " + frame.index + " has not been written", e);
+                } finally {
+                    permits.release();
+                }
+            }
+        }
+
+        private void write(Frame frame) throws IOException {
+            sink.write(frame.index, frame.image);
+            long writtenAt = System.nanoTime();
+            latency.record(writtenAt - frame.readAt);
+            if (written++ == 0) {
+                firstWrittenAt = writtenAt;
+            }
+            lastWrittenAt = writtenAt;
+            LOGGER.debug("Frame " + frame.index + " has been written " + TimeUnit.NANOSECONDS.toMillis(writtenAt - frame.readAt)
+                    + " ms after it was read, " + ready.size() + " later frame(s) are buffered");
+        }
+    }
+}
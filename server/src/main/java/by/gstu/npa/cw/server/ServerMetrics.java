@@ -0,0 +1,383 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.BufferPool;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of every phase of a tile, overall, per client and for the most recent jobs, together with the queue depth and
+ * the client utilization and the frame buffers. Exposed as an MXBean and as plain text on {@code http://localhost:<port>/metrics}.
+ */
+final class ServerMetrics implements SmoothingMetricsMXBean, AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(ServerMetrics.class);
+
+    private static final int RECENT_JOBS = 16;
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /**
+     * Phases of a tile in the order they happen. Tiles are encoded straight from the source image, so {@code ENCODE}
+     * includes cutting them out. {@code TRANSFER} is the round trip without the compute time the client reports, so it
+     * includes the network and the client's own decoding and encoding.
+     */
+    enum Phase {
+        QUEUE, ENCODE, TRANSFER, COMPUTE, DECODE, MERGE;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final WorkerRegistry registry;
+    private final JobScheduler scheduler;
+    private final BufferPool bufferPool;
+    private final Map<Phase, LatencyHistogram> phases = newPhases();
+    private final Map<Worker, WorkerTimings> workers = new ConcurrentHashMap<>();
+    private final Deque<JobTimings> recentJobs = new ArrayDeque<>();
+    private ObjectName objectName;
+    private HttpServer httpServer;
+
+    ServerMetrics(WorkerRegistry registry, JobScheduler scheduler, BufferPool bufferPool) {
+        this.registry = registry;
+        this.scheduler = scheduler;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Registers the MXBean and, unless {@code port} is negative, starts the text endpoint on the loopback interface.
+     */
+    void start(int port) {
+        try {
+            int instance = INSTANCES.incrementAndGet();
+            objectName = new ObjectName("by.gstu.npa.cw.server:type=SmoothingMetrics"
+                    + ((instance > 1) ? ",instance=" + instance : ""));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Metrics MXBean could not be registered", e);
+            objectName = null;
+        }
+        if (port < 0) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = getReport().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.start();
+            LOGGER.info("Metrics are served on http://localhost:" + httpServer.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            LOGGER.warn("Metrics endpoint could not be started on port " + port, e);
+            httpServer = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.warn("Metrics MXBean could not be unregistered", e);
+            }
+        }
+    }
+
+    void addWorker(Worker worker) {
+        workers.putIfAbsent(worker, new WorkerTimings(worker.getConnectedAt()));
+    }
+
+    void removeWorker(Worker worker) {
+        workers.remove(worker);
+    }
+
+    JobTimings newJob(int jobId) {
+        return new JobTimings(jobId);
+    }
+
+    private void record(Worker worker, Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+        WorkerTimings timings = (worker != null) ? workers.get(worker) : null;
+        if (timings != null) {
+            timings.phases.get(phase).record(nanos);
+            if (phase == Phase.TRANSFER || phase == Phase.COMPUTE) {
+                timings.busy.addAndGet(nanos);
+            }
+        }
+    }
+
+    private void finished(JobTimings job) {
+        synchronized (recentJobs) {
+            recentJobs.addFirst(job);
+            if (recentJobs.size() > RECENT_JOBS) {
+                recentJobs.removeLast();
+            }
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return scheduler.pendingTileCount();
+    }
+
+    @Override
+    public int getActiveJobs() {
+        return scheduler.jobCount();
+    }
+
+    @Override
+    public int getWorkers() {
+        return registry.size();
+    }
+
+    @Override
+    public int getIdleWorkers() {
+        return registry.idleCount();
+    }
+
+    @Override
+    public long getSpeculativeDispatches() {
+        return scheduler.speculationCount();
+    }
+
+    @Override
+    public long getBufferAllocations() {
+        return bufferPool.getAllocations();
+    }
+
+    @Override
+    public long getPooledBufferBytes() {
+        return bufferPool.getPooledBytes();
+    }
+
+    @Override
+    public double getUtilization() {
+        long now = System.nanoTime();
+        double total = 0;
+        int count = 0;
+        for (WorkerTimings timings : workers.values()) {
+            total += timings.utilization(now);
+            count++;
+        }
+        return (count > 0) ? total / count : 0;
+    }
+
+    @Override
+    public Map<String, Double> getWorkerUtilization() {
+        long now = System.nanoTime();
+        Map<String, Double> utilization = new LinkedHashMap<>();
+        workers.forEach((worker, timings) -> utilization.put(worker.toString(), timings.utilization(now)));
+        return utilization;
+    }
+
+    @Override
+    public Map<String, Double> getWorkerPixelsPerSecond() {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        workers.keySet().forEach(worker -> rates.put(worker.toString(), worker.getThroughput().getPixelsPerSecond()));
+        return rates;
+    }
+
+    String describeThroughput() {
+        StringBuilder description = new StringBuilder();
+        workers.keySet().forEach(worker -> description.append((description.length() > 0) ? ", " : "")
+                .append(worker).append(' ').append(worker.getThroughput()));
+        return description.toString();
+    }
+
+    @Override
+    public Map<String, Double> getPhaseP50Millis() {
+        return phaseMillis(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getPhaseP99Millis() {
+        return phaseMillis(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMaxMillis() {
+        return phaseMillis(1);
+    }
+
+    private Map<String, Double> phaseMillis(double quantile) {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = phases.get(phase);
+            long nanos = (quantile >= 1) ? histogram.getMax() : histogram.getQuantile(quantile);
+            millis.put(phase.label(), nanos / 1e6);
+        }
+        return millis;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder(4096);
+        long now = System.nanoTime();
+        report.append("# TYPE smoothing_queue_depth gauge\n");
+        report.append("smoothing_queue_depth ").append(getQueueDepth()).append('\n');
+        report.append("# TYPE smoothing_active_jobs gauge\n");
+        report.append("smoothing_active_jobs ").append(getActiveJobs()).append('\n');
+        report.append("# TYPE smoothing_workers gauge\n");
+        report.append("smoothing_workers ").append(getWorkers()).append('\n');
+        report.append("smoothing_idle_workers ").append(getIdleWorkers()).append('\n');
+        report.append("# TYPE smoothing_speculative_dispatches_total counter\n");
+        report.append("smoothing_speculative_dispatches_total ").append(getSpeculativeDispatches()).append('\n');
+        report.append("# TYPE smoothing_buffer_allocations_total counter\n");
+        report.append("smoothing_buffer_allocations_total ").append(getBufferAllocations()).append('\n');
+        report.append("# TYPE smoothing_pooled_buffer_bytes gauge\n");
+        report.append("smoothing_pooled_buffer_bytes ").append(getPooledBufferBytes()).append('\n');
+        report.append("# TYPE smoothing_phase_seconds summary\n");
+        appendPhases(report, "smoothing_phase_seconds", "", phases);
+        report.append("# TYPE smoothing_worker_utilization gauge\n");
+        workers.forEach((worker, timings) -> report.append("smoothing_worker_utilization{worker=\"")
+                .append(escape(worker.toString())).append("\"} ").append(format(timings.utilization(now))).append('\n'));
+        report.append("# TYPE smoothing_worker_pixels_per_second gauge\n");
+        workers.keySet().forEach(worker -> report.append("smoothing_worker_pixels_per_second{worker=\"")
+                .append(escape(worker.toString())).append("\"} ").append(format(worker.getThroughput().getPixelsPerSecond())).append('\n'));
+        report.append("# TYPE smoothing_worker_phase_seconds summary\n");
+        workers.forEach((worker, timings) -> appendPhases(report, "smoothing_worker_phase_seconds",
+                "worker=\"" + escape(worker.toString()) + "\",", timings.phases));
+        List<JobTimings> jobs;
+        synchronized (recentJobs) {
+            jobs = new ArrayList<>(recentJobs);
+        }
+        report.append("# TYPE smoothing_job_phase_seconds summary\n");
+        for (JobTimings job : jobs) {
+            appendPhases(report, "smoothing_job_phase_seconds", "job=\"" + job.jobId + "\",", job.phases);
+        }
+        return report.toString();
+    }
+
+    private static void appendPhases(StringBuilder report, String name, String labels, Map<Phase, LatencyHistogram> phases) {
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = phases.get(phase);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            String prefix = name + "{" + labels + "phase=\"" + phase.label() + "\"";
+            report.append(prefix).append(",quantile=\"0.5\"} ").append(seconds(histogram.getQuantile(0.5))).append('\n');
+            report.append(prefix).append(",quantile=\"0.99\"} ").append(seconds(histogram.getQuantile(0.99))).append('\n');
+            report.append(prefix).append(",quantile=\"1\"} ").append(seconds(histogram.getMax())).append('\n');
+            report.append(name).append("_sum{").append(labels).append("phase=\"").append(phase.label()).append("\"} ")
+                    .append(seconds(histogram.getSum())).append('\n');
+            report.append(name).append("_count{").append(labels).append("phase=\"").append(phase.label()).append("\"} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return format(nanos / 1e9);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static Map<Phase, LatencyHistogram> newPhases() {
+        Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+        return phases;
+    }
+
+
+    private static final class WorkerTimings {
+
+        private final long connectedAt;
+        private final Map<Phase, LatencyHistogram> phases = newPhases();
+        private final AtomicLong busy = new AtomicLong();
+
+        private WorkerTimings(long connectedAt) {
+            this.connectedAt = connectedAt;
+        }
+
+        private double utilization(long now) {
+            return Math.min(busy.get() / (double) Math.max(now - connectedAt, 1), 1);
+        }
+    }
+
+
+    /**
+     * Phase latencies of one job; everything recorded here also counts overall and for the client.
+     */
+    final class JobTimings {
+
+        private final int jobId;
+        private final long createdAt = System.nanoTime();
+        private final Map<Phase, LatencyHistogram> phases = newPhases();
+
+        private JobTimings(int jobId) {
+            this.jobId = jobId;
+        }
+
+        long getCreatedAt() {
+            return createdAt;
+        }
+
+        void record(Worker worker, Phase phase, long nanos) {
+            phases.get(phase).record(nanos);
+            ServerMetrics.this.record(worker, phase, nanos);
+        }
+
+        void finish() {
+            finished(this);
+        }
+
+        String summary() {
+            StringBuilder summary = new StringBuilder();
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = phases.get(phase);
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                summary.append((summary.length() > 0) ? ", " : "").append(phase.label())
+                        .append(String.format(Locale.ROOT, " p50 %.1f / p99 %.1f / max %.1f ms",
+                                histogram.getQuantile(0.5) / 1e6, histogram.getQuantile(0.99) / 1e6, histogram.getMax() / 1e6));
+            }
+            return summary.toString();
+        }
+    }
+
+    static long elapsedSince(long startedAt) {
+        return System.nanoTime() - startedAt;
+    }
+
+    static long micros(int micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+}
@@ -0,0 +1,38 @@
+package by.gstu.npa.cw.server;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A smoothed image together with the timing of its own job: how long it waited for the first client and how long it
+ * was processed after that.
+ */
+public final class SmoothResult {
+
+    private final int jobId;
+    private final BufferedImage image;
+    private final long queueTime;
+    private final long processingTime;
+
+    SmoothResult(int jobId, BufferedImage image, long queueTime, long processingTime) {
+        this.jobId = jobId;
+        this.image = image;
+        this.queueTime = queueTime;
+        this.processingTime = processingTime;
+    }
+
+    public int getJobId() {
+        return jobId;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    public long getProcessingTime() {
+        return processingTime;
+    }
+}
@@ -0,0 +1,41 @@
+package by.gstu.npa.cw.server;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SocketSmoothManager}: queue depth, clients, their throughput, frame buffer reuse and the latency
+ * of every phase of a tile, in milliseconds, keyed by phase or client.
+ */
+public interface SmoothingMetricsMXBean {
+
+    int getQueueDepth();
+
+    int getActiveJobs();
+
+    int getWorkers();
+
+    int getIdleWorkers();
+
+    long getSpeculativeDispatches();
+
+    /**
+     * Direct buffers allocated for frames so far; it stops growing once the pool covers the frames in flight.
+     */
+    long getBufferAllocations();
+
+    long getPooledBufferBytes();
+
+    double getUtilization();
+
+    Map<String, Double> getWorkerUtilization();
+
+    Map<String, Double> getWorkerPixelsPerSecond();
+
+    Map<String, Double> getPhaseP50Millis();
+
+    Map<String, Double> getPhaseP99Millis();
+
+    Map<String, Double> getPhaseMaxMillis();
+
+    String getReport();
+}
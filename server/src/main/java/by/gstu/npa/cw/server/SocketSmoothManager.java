@@ -1,113 +1,229 @@
 package by.gstu.npa.cw.server;
 
+import by.gstu.npa.cw.core.BufferPool;
 import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.ImageCodec;
+import by.gstu.npa.cw.core.IntRaster;
+import by.gstu.npa.cw.core.RawImageFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public final class SocketSmoothManager implements AutoCloseable {
 
     private static final Logger LOGGER = LogManager.getLogger(SocketSmoothManager.class);
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private final Object clientsMutex = new Object();
-    private final List<Socket> clients = Collections.synchronizedList(new ArrayList<>());
-    private final List<Socket> busyClients = Collections.synchronizedList(new ArrayList<>());
-    private ServerSocket serverSocket;
-    private long processingTime;
-    private Consumer<Integer> activeClientsCountCallback;
-    private final Thread socketConnectionThread = new Thread(this::connectWithSockets);
-    private final Thread activeSocketCheckThread = new Thread(this::checkActiveSockets);
+    private final ExecutorService codecPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final WorkerRegistry registry = new WorkerRegistry(Math.max(Integer.getInteger("smoothing.pipelineDepth", 1), 0));
+    private final JobScheduler scheduler = new JobScheduler(registry, this::removeClient, codecPool);
+    private final BufferPool bufferPool = new BufferPool();
+    private final ServerMetrics metrics = new ServerMetrics(registry, scheduler, bufferPool);
+    private final AtomicInteger nextJobId = new AtomicInteger();
+    private final List<EmbeddedWorker> embeddedWorkers = new CopyOnWriteArrayList<>();
+    private volatile List<ImageCodec> preferredCodecs = Arrays.asList(ImageCodec.RAW, ImageCodec.RAW_DEFLATE, ImageCodec.PNG);
+    private NioTransport transport;
+    private volatile int tileSize = Integer.getInteger("smoothing.tileSize", 256);
+    private volatile int bandRows = Integer.getInteger("smoothing.bandRows", 64);
+    private volatile HaloMode haloMode = HaloMode.AUTO;
+    private volatile ExecutionMode executionMode;
+    private volatile long embeddedJobPixels = Long.getLong("smoothing.embeddedJobPixels", 1L << 22);
+    private volatile ResultCache resultCache;
+    private volatile Consumer<Integer> activeClientsCountCallback = clients -> {
+    };
 
     public SocketSmoothManager() {
+        int embeddedCount = Integer.getInteger("smoothing.embeddedWorkers", Math.max(Runtime.getRuntime().availableProcessors() / 2, 1));
+        for (int i = 1; i <= embeddedCount; i++) {
+            embeddedWorkers.add(new EmbeddedWorker("embedded-" + i));
+        }
+        setExecutionMode(ExecutionMode.valueOf(System.getProperty("smoothing.executionMode", "HYBRID").toUpperCase(Locale.ROOT)));
         try {
-            serverSocket = new ServerSocket(Common.PORT);
-            socketConnectionThread.start();
-            activeSocketCheckThread.start();
+            int ioThreads = Integer.getInteger("smoothing.ioThreads", Math.min(Math.max(Runtime.getRuntime().availableProcessors() / 2, 1), 4));
+            transport = new NioTransport(Common.PORT, ioThreads, () -> preferredCodecs, bufferPool, new NioTransport.Listener() {
+                @Override
+                public void connected(WorkerConnection connection) {
+                    metrics.addWorker(connection);
+                    registry.add(connection);
+                    LOGGER.info("Client " + connection + " has connected");
+                    activeClientsCountCallback.accept(activeClientsCount());
+                    scheduler.schedule();
+                }
+
+                @Override
+                public void disconnected(WorkerConnection connection) {
+                    LOGGER.info("Client " + connection + " has disconnected");
+                    removeClient(connection);
+                }
+            });
         } catch (IOException e) {
             LOGGER.fatal(e);
         }
+        metrics.start(Integer.getInteger("smoothing.metricsPort", Common.PORT + 1));
+        resultCache = openCache();
     }
 
-    @Override
-    public void close() {
+    /**
+     * Opens the cache configured by {@code smoothing.cacheMemory} megabytes and {@code smoothing.cacheDir}, or returns
+     * {@code null} if neither is set, since hashing every submitted image only pays off for repeated inputs.
+     */
+    private static ResultCache openCache() {
+        String cacheDirectory = System.getProperty("smoothing.cacheDir");
+        long cacheCapacity = Long.getLong("smoothing.cacheMemory", (cacheDirectory != null) ? 64 : 0) << 20;
+        if (cacheCapacity == 0 && cacheDirectory == null) {
+            return null;
+        }
         try {
-            socketConnectionThread.interrupt();
-            activeSocketCheckThread.interrupt();
-            threadPool.shutdown();
-            synchronized (clientsMutex) {
-                for (Socket client : clients) {
-                    client.close();
-                }
-                clients.clear();
-                busyClients.clear();
-            }
-            activeClientsCountCallback.accept(activeClientsCount());
-            serverSocket.close();
+            return new ResultCache(cacheCapacity, (cacheDirectory != null) ? Paths.get(cacheDirectory) : null);
         } catch (IOException e) {
-            LOGGER.error(e);
+            LOGGER.error("Cache directory " + cacheDirectory + " is not available, results are cached in memory only", e);
+            try {
+                return new ResultCache(cacheCapacity, null);
+            } catch (IOException impossible) {
+                throw new AssertionError(impossible);
+            }
         }
     }
 
-    public void connectWithSockets() {
-        while (!serverSocket.isClosed()) {
-            try {
-                Socket socket = serverSocket.accept();
-                clients.add(socket);
-                activeClientsCountCallback.accept(activeClientsCount());
-            } catch (IOException e) {
-                LOGGER.info(e);
-            }
+    @Override
+    public void close() {
+        threadPool.shutdown();
+        codecPool.shutdown();
+        if (transport != null) {
+            transport.close();
+        }
+        for (Worker worker : registry.removeAll()) {
+            worker.close();
         }
+        embeddedWorkers.forEach(EmbeddedWorker::close);
+        metrics.close();
+        activeClientsCountCallback.accept(activeClientsCount());
     }
 
-    public void checkActiveSockets() {
-        while (!serverSocket.isClosed()) {
-            synchronized (clientsMutex) {
-                for (int i = 0; i < clients.size(); i++) {
-                    Socket client = clients.get(i);
-                    if (busyClients.contains(client)) {
-                        continue;
-                    }
-                    try {
-                        OutputStream outputStream = client.getOutputStream();
-                        outputStream.write(0);
-                        outputStream.flush();
-                    } catch (IOException e) {
-                        LOGGER.info(e);
-                        clients.remove(i);
-                        activeClientsCountCallback.accept(activeClientsCount());
-                    }
-                }
-            }
-            try {
-                //noinspection BusyWait
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                //noinspection ResultOfMethodCallIgnored
-                Thread.interrupted();
-                LOGGER.info(e);
+    public void setPreferredCodecs(ImageCodec... codecs) {
+        if (codecs.length == 0) {
+            throw new IllegalArgumentException("At least one codec is required");
+        }
+        preferredCodecs = Arrays.asList(codecs.clone());
+    }
+
+    public void setHaloMode(HaloMode haloMode) {
+        this.haloMode = Objects.requireNonNull(haloMode);
+    }
+
+    public HaloMode getHaloMode() {
+        return haloMode;
+    }
+
+    /**
+     * Chooses who smooths tiles; embedded workers join or leave the registry accordingly. Tiles already running are
+     * finished where they are.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = Objects.requireNonNull(executionMode);
+        for (EmbeddedWorker worker : embeddedWorkers) {
+            if (executionMode == ExecutionMode.REMOTE) {
+                registry.remove(worker);
+                metrics.removeWorker(worker);
+            } else {
+                metrics.addWorker(worker);
+                registry.add(worker);
             }
         }
+        LOGGER.info("Tiles are smoothed in " + executionMode + " mode with " + embeddedWorkers.size() + " embedded worker(s)");
+        scheduler.schedule();
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getEmbeddedWorkerCount() {
+        return embeddedWorkers.size();
+    }
+
+    /**
+     * Sets the largest job, in pixels times passes, that {@link ExecutionMode#HYBRID} keeps on the embedded workers.
+     */
+    public void setEmbeddedJobPixels(long embeddedJobPixels) {
+        this.embeddedJobPixels = Math.max(embeddedJobPixels, 0);
+    }
+
+    public long getEmbeddedJobPixels() {
+        return embeddedJobPixels;
+    }
+
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Sets the rows of a result clients send per frame, so smoothed rows are merged and shown while the rest of a tile
+     * is still being computed; 0 returns every result in a single frame.
+     */
+    public void setBandRows(int bandRows) {
+        if (bandRows < 0) {
+            throw new IllegalArgumentException("Band rows must not be negative: " + bandRows);
+        }
+        this.bandRows = bandRows;
+    }
+
+    public int getBandRows() {
+        return bandRows;
+    }
+
+    /**
+     * Sets the cache of smoothed images and tiles, or {@code null} to always smooth on the clients.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
     }
 
     public int activeClientsCount() {
-        return clients.size();
+        return registry.clientCount();
+    }
+
+    public CompletableFuture<Void> awaitClients(int clientsCount) {
+        return registry.awaitClients(clientsCount);
+    }
+
+    /**
+     * Returns the live metrics that are also registered as an MXBean and served on {@code smoothing.metricsPort}.
+     */
+    public SmoothingMetricsMXBean getMetrics() {
+        return metrics;
     }
 
     public void setClientCountCallback(Consumer<Integer> callback) {
@@ -115,95 +231,306 @@ public final class SocketSmoothManager implements AutoCloseable {
     }
 
     public void smoothImage(final BufferedImage original, final int clientsCount, final int kernelSize, final int repeatCount, SmoothCallback callback) {
-        threadPool.submit(() -> callback.callback(smoothImage(original, clientsCount, kernelSize, repeatCount), processingTime));
+        smoothImage(original, clientsCount, Filter.legacy(kernelSize, repeatCount), callback);
+    }
+
+    public void smoothImage(final BufferedImage original, final int clientsCount, final Filter filter, SmoothCallback callback) {
+        smoothImage(original, clientsCount, filter, callback, null);
+    }
+
+    /**
+     * Smooths an image like {@link #smoothImage(BufferedImage, int, Filter, SmoothCallback)} and reports every region
+     * of the result as soon as it is merged.
+     */
+    public void smoothImage(final BufferedImage original, final int clientsCount, final Filter filter, SmoothCallback callback,
+                            ProgressCallback progress) {
+        smoothImage(original, clientsCount, filter, callback, progress, null);
+    }
+
+    /**
+     * Smooths an image like {@link #smoothImage(BufferedImage, int, Filter, SmoothCallback, ProgressCallback)}; if it
+     * cannot be smoothed, the error callback, if any, is told instead of the smooth callback.
+     */
+    public void smoothImage(final BufferedImage original, final int clientsCount, final Filter filter, SmoothCallback callback,
+                            ProgressCallback progress, ErrorCallback errorCallback) {
+        awaitClients(clientsCount)
+                .thenComposeAsync(ignored -> submit(original, filter, progress), threadPool)
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+                        LOGGER.error("Image could not be smoothed", cause);
+                        if (errorCallback != null) {
+                            errorCallback.failed(cause);
+                        }
+                    } else {
+                        callback.callback(result.getImage(), result.getProcessingTime());
+                    }
+                });
     }
 
     public BufferedImage smoothImage(final BufferedImage original, final int clientsCount, final int kernelSize, final int repeatCount) {
-        // noinspection StatementWithEmptyBody
-        while (activeClientsCount() < clientsCount) ;
-        processingTime = System.nanoTime();
-        int partWidth = original.getWidth() / clientsCount;
-        int remainingWidth = original.getWidth() % clientsCount;
-        List<Future<BufferedImage>> futures;
-        int paddingSize = (int) ((int) (partWidth * 0.05) * (kernelSize * 0.15 * repeatCount * 0.35));
-        synchronized (clientsMutex) {
-            futures = smoothMap(original, clientsCount, partWidth, remainingWidth, kernelSize, repeatCount, paddingSize);
-        }
-        BufferedImage smoothed = smoothReduce(original, clientsCount, partWidth, remainingWidth, paddingSize, futures);
-        busyClients.clear();
-        processingTime = System.nanoTime() - processingTime;
-        return smoothed;
-    }
-
-    private List<Future<BufferedImage>> smoothMap(final BufferedImage image, final int clientsCount, final int partWidth, final int remainingWidth, final int kernelSize, final int repeatCount, final int paddingSize) {
-        int height = image.getHeight();
-        List<Future<BufferedImage>> futures = new ArrayList<>(clientsCount);
-        for (int i = 0; i < clientsCount; i++) {
-            boolean first = (i == 0);
-            int currentPadding = first ? 0 : paddingSize;
-            boolean last = (i == clientsCount - 1);
-            int currentPartWidth = partWidth;
-            if (clientsCount > 1) {
-                currentPartWidth += (last ? remainingWidth : 0) + ((first || last) ? paddingSize : paddingSize * 2);
+        awaitClients(clientsCount).join();
+        return submit(original, kernelSize, repeatCount).join().getImage();
+    }
+
+    public CompletableFuture<SmoothResult> submit(final BufferedImage original, final int kernelSize, final int repeatCount) {
+        return submit(original, Filter.legacy(kernelSize, repeatCount));
+    }
+
+    /**
+     * Starts smoothing an image on the clients that are connected now or connect later, alongside any other submitted
+     * images. Passes of a repeatable filter compose, so if the cache holds the same image smoothed with fewer passes,
+     * only the remaining passes are run on that result.
+     */
+    public CompletableFuture<SmoothResult> submit(final BufferedImage original, final Filter filter) {
+        return submit(original, filter, null);
+    }
+
+    /**
+     * Starts smoothing an image like {@link #submit(BufferedImage, Filter)}. The progress callback, if any, is told
+     * about every region of the result as soon as it is merged, from the threads that merge it.
+     */
+    public CompletableFuture<SmoothResult> submit(final BufferedImage original, final Filter filter, final ProgressCallback progress) {
+        final int jobId = nextJobId.incrementAndGet();
+        final long submittedAt = System.nanoTime();
+        final ResultCache cache = resultCache;
+        final String content = (cache != null) ? ResultCache.contentHash(original) : null;
+        final String key = (cache != null) ? ResultCache.imageKey(content, filter) : null;
+        BufferedImage cached = (cache != null) ? cache.get(key) : null;
+        if (cached != null) {
+            LOGGER.info("Job " + jobId + " is served from the cache (" + cacheStatistics(cache) + ")");
+            return CompletableFuture.completedFuture(new SmoothResult(jobId, copy(cached), 0, System.nanoTime() - submittedAt));
+        }
+        BufferedImage source = original;
+        Filter remaining = filter;
+        ResultCache.Intermediate closest = (cache != null) ? cache.getClosest(content, filter) : null;
+        if (closest != null) {
+            source = closest.getImage();
+            remaining = filter.withPassCount(filter.getPassCount() - closest.getPassCount());
+            LOGGER.info("Job " + jobId + " resumes from " + closest.getPassCount() + " cached passes, "
+                    + remaining.getPassCount() + " remain");
+        }
+        final BufferedImage smoothed = new BufferedImage(original.getWidth(), original.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Runnable remember = (cache != null) ? () -> cache.put(key, copy(smoothed)) : () -> {
+        };
+        final AtomicLong firstPixelsAt = new AtomicLong();
+        ProgressCallback tracked = (image, x, y, width, height) -> {
+            firstPixelsAt.compareAndSet(0, System.nanoTime());
+            if (progress != null) {
+                progress.progress(image, x, y, width, height);
             }
-            BufferedImage partImage = new BufferedImage(currentPartWidth, height, BufferedImage.TYPE_INT_RGB);
-            Graphics graphics = partImage.createGraphics();
-            graphics.drawImage(image,
-                    0,
-                    0,
-                    currentPartWidth,
-                    height,
-                    partWidth * i - currentPadding,
-                    0,
-                    partWidth * i - currentPadding + currentPartWidth,
-                    height,
-                    null);
-            graphics.dispose();
-            Socket client = clients.get(i);
-            busyClients.add(client);
-            futures.add(threadPool.submit(() -> sendImageToClient(client, partImage, kernelSize, repeatCount)));
-        }
-        return futures;
-    }
-
-    private BufferedImage smoothReduce(final BufferedImage image, final int clientsCount, final int partWidth, final int remainingWidth, final int paddingSize, final List<Future<BufferedImage>> futures) {
-        int height = image.getHeight();
-        BufferedImage smoothed = new BufferedImage(image.getWidth(), height, BufferedImage.TYPE_INT_RGB);
-        Graphics graphics = smoothed.createGraphics();
-        for (int i = 0; i < clientsCount; i++) {
-            int currentPadding = (i == 0) ? 0 : paddingSize;
-            int currentPartWidth = partWidth + ((i == clientsCount - 1) ? remainingWidth : 0);
-            try {
-                BufferedImage smoothPartImage = futures.get(i).get();
-                graphics.drawImage(smoothPartImage,
-                        partWidth * i,
-                        0,
-                        partWidth * i + currentPartWidth,
-                        height,
-                        currentPadding,
-                        0,
-                        currentPartWidth + currentPadding,
-                        height,
-                        null);
-            } catch (InterruptedException | ExecutionException e) {
-                LOGGER.warn(e);
+        };
+        boolean embeddedOnly = keepsEmbedded(source.getWidth(), source.getHeight(), remaining);
+        CompletableFuture<Long> started = (haloMode != HaloMode.FULL && !embeddedOnly)
+                ? smoothWithExchange(jobId, submittedAt, source, smoothed, remaining, tracked, remember)
+                : null;
+        if (started == null) {
+            started = smoothByTiles(jobId, submittedAt, source, smoothed, remaining, embeddedOnly, tracked, remember);
+        }
+        return started.thenApply(startedAt -> {
+            long finishedAt = System.nanoTime();
+            LOGGER.info("Job " + jobId + " has been smoothed in " + TimeUnit.NANOSECONDS.toMillis(finishedAt - startedAt)
+                    + " ms after waiting " + TimeUnit.NANOSECONDS.toMillis(startedAt - submittedAt) + " ms, first pixels after "
+                    + TimeUnit.NANOSECONDS.toMillis(Math.max(firstPixelsAt.get() - startedAt, 0)) + " ms"
+                    + ((cache != null) ? " (" + cacheStatistics(cache) + ")" : ""));
+            return new SmoothResult(jobId, smoothed, startedAt - submittedAt, finishedAt - startedAt);
+        });
+    }
+
+    /**
+     * Smooths an image that need not fit in the heap into a {@link RawImageFile}, reading and writing it a band of
+     * tiles at a time; at most {@code smoothing.streamWindow} bands are held in memory.
+     */
+    public void smoothStreaming(final File input, final Path output, final int clientsCount, final Filter filter)
+            throws IOException, InterruptedException {
+        awaitClients(clientsCount).join();
+        long startedAt = System.nanoTime();
+        try (ImageBandReader source = ImageBandReader.open(input);
+             RawImageFile target = RawImageFile.create(output, source.getWidth(), source.getHeight())) {
+            boolean embeddedOnly = keepsEmbedded(source.getWidth(), source.getHeight(), filter);
+            if (embeddedOnly) {
+                LOGGER.info("Image " + input + " stays on the embedded workers");
+            }
+            new StreamingJob(scheduler, nextJobId::incrementAndGet, codecPool, tileSize,
+                    Math.max(Integer.getInteger("smoothing.streamWindow", 3), 1), bandRows, embeddedOnly, resultCache, metrics)
+                    .run(source, target, filter);
+        }
+        LOGGER.info("Image " + input + " has been streamed into " + output + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + " ms");
+    }
+
+    /**
+     * Returns {@code true} if a job on an image of the given size should not leave the server's own cores.
+     */
+    private boolean keepsEmbedded(int width, int height, Filter filter) {
+        ExecutionMode mode = executionMode;
+        if (embeddedWorkers.isEmpty() || mode == ExecutionMode.REMOTE) {
+            return false;
+        }
+        return mode == ExecutionMode.LOCAL
+                || (long) width * height * filter.getPassCount() <= embeddedJobPixels;
+    }
+
+    private CompletableFuture<Long> smoothByTiles(int jobId, long submittedAt, BufferedImage original, BufferedImage smoothed,
+                                                  Filter filter, boolean embeddedOnly, ProgressCallback progress,
+                                                  Runnable remember) {
+        List<Tile> tiles = Tile.split(original.getWidth(), original.getHeight(), tileSize, filter.getReachBefore(), filter.getReachAfter());
+        TileJob job = new TileJob(jobId, original, smoothed, filter, tiles, bandRows, progress, resultCache, metrics.newJob(jobId));
+        job.setEmbeddedOnly(embeddedOnly);
+        if (embeddedOnly) {
+            LOGGER.info("Job " + jobId + " stays on the embedded workers");
+        }
+        if (job.getCachedCount() > 0) {
+            LOGGER.info("Job " + jobId + ": " + job.getCachedCount() + " of " + tiles.size() + " tiles are served from the cache");
+        }
+        return scheduler.submit(job).thenApply(ignored -> {
+            LOGGER.debug("Job " + jobId + " phases: " + job.getTimings().summary());
+            LOGGER.info("Client throughput after job " + jobId + ": " + metrics.describeThroughput());
+            remember.run();
+            return (job.getStartedAt() != 0) ? job.getStartedAt() : submittedAt;
+        });
+    }
+
+    private CompletableFuture<Long> smoothWithExchange(int jobId, long submittedAt, BufferedImage original, BufferedImage smoothed,
+                                                       Filter filter, ProgressCallback progress, Runnable remember) {
+        int before = filter.getPassReachBefore(), after = filter.getPassReachAfter();
+        if (haloMode == HaloMode.AUTO
+                && (filter.getPassCount() == 1 || (filter.getReachBefore() + filter.getReachAfter()) * 2 < tileSize)) {
+            return null;
+        }
+        List<WorkerConnection> idle = registry.checkOutIdleClients();
+        int stripCount = Math.min(idle.size(), original.getWidth() / Math.max(Math.max(before, after), 1));
+        if (stripCount < 2) {
+            idle.forEach(registry::releaseWhole);
+            scheduler.schedule();
+            return null;
+        }
+        List<WorkerConnection> workers = new ArrayList<>(idle.subList(0, stripCount));
+        idle.subList(stripCount, idle.size()).forEach(registry::releaseWhole);
+        scheduler.schedule();
+        List<Tile> strips = Tile.strips(original.getWidth(), original.getHeight(), stripWeights(workers),
+                Math.max(Math.max(before, after), 1), before, after);
+        LOGGER.info("Job " + jobId + " is split by client throughput: " + describeStrips(strips, workers));
+        HaloExchange exchange = new HaloExchange(jobId, original, smoothed, strips, workers, filter, bandRows, progress,
+                codecPool, metrics.newJob(jobId));
+        return exchange.run()
+                .handle((ignored, error) -> {
+                    if (error == null) {
+                        LOGGER.debug("Job " + jobId + " phases: " + exchange.getTimings().summary());
+                        workers.forEach(registry::releaseWhole);
+                        scheduler.schedule();
+                        remember.run();
+                        return CompletableFuture.completedFuture(submittedAt);
+                    }
+                    List<WorkerConnection> failed = exchange.getFailedWorkers();
+                    LOGGER.warn("Halo exchange of job " + jobId + " has failed on " + failed
+                            + ", the other clients are resynchronized and the image is smoothed by tiles", error);
+                    for (WorkerConnection worker : workers) {
+                        if (failed.contains(worker)) {
+                            removeClient(worker);
+                        } else {
+                            resync(exchange, worker);
+                        }
+                    }
+                    return smoothByTiles(jobId, submittedAt, original, smoothed, filter, false, progress, remember);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns a healthy client of a failed exchange to the registry once it has dropped the job, or disconnects it if
+     * it does not answer the abort in time.
+     */
+    private void resync(HaloExchange exchange, WorkerConnection worker) {
+        exchange.resync(worker).whenComplete((ignored, error) -> {
+            if (error != null) {
+                LOGGER.warn("Client " + worker + " has not acknowledged the aborted exchange", error);
+                removeClient(worker);
+            } else {
+                registry.releaseWhole(worker);
+                scheduler.schedule();
+            }
+        });
+    }
+
+    /**
+     * Weighs every client by its measured throughput; clients without history get the average of the measured ones,
+     * so an unmeasured fleet is split equally.
+     */
+    private static double[] stripWeights(List<WorkerConnection> workers) {
+        double[] weights = new double[workers.size()];
+        double total = 0;
+        int measured = 0;
+        for (int i = 0; i < weights.length; i++) {
+            ThroughputMeter throughput = workers.get(i).getThroughput();
+            if (throughput.hasHistory()) {
+                weights[i] = throughput.getPixelsPerSecond();
+                total += weights[i];
+                measured++;
+            }
+        }
+        double fallback = (measured > 0) ? total / measured : 1;
+        for (int i = 0; i < weights.length; i++) {
+            if (!workers.get(i).getThroughput().hasHistory()) {
+                weights[i] = fallback;
             }
         }
-        graphics.dispose();
-        return smoothed;
+        return weights;
+    }
+
+    private static String describeStrips(List<Tile> strips, List<WorkerConnection> workers) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < strips.size(); i++) {
+            description.append((i > 0) ? ", " : "").append(workers.get(i)).append(" at ")
+                    .append(workers.get(i).getThroughput()).append(" gets ").append(strips.get(i).getWidth()).append(" columns");
+        }
+        return description.toString();
     }
 
-    private BufferedImage sendImageToClient(Socket socket, BufferedImage image, int kernelSize, int repeatCount) throws IOException {
-        OutputStream outputStream = socket.getOutputStream();
-        outputStream.write(1);
-        Common.putIntToSocket(outputStream, kernelSize);
-        Common.putIntToSocket(outputStream, repeatCount);
-        Common.send(outputStream, image);
-        return Common.receive(socket.getInputStream());
+    private static String cacheStatistics(ResultCache cache) {
+        return "cache hits: " + cache.getHits() + ", from disk: " + cache.getDiskHits()
+                + ", resumed: " + cache.getPartialHits() + ", misses: " + cache.getMisses();
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        return IntRaster.crop(image, 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    private void removeClient(Worker client) {
+        boolean removed = registry.remove(client);
+        metrics.removeWorker(client);
+        client.close();
+        if (removed) {
+            activeClientsCountCallback.accept(activeClientsCount());
+        }
+    }
+
+    static BufferedImage smoothMap(final BufferedImage image, final Tile tile) {
+        return IntRaster.crop(image, tile.getHaloX(), tile.getHaloY(), tile.getHaloWidth(), tile.getHaloHeight());
+    }
+
+    /**
+     * Copies the core of a smoothed tile, found at {@code offsetX, offsetY} in {@code smoothedTile}, into place. Tiles
+     * never overlap, so merges of different tiles need no lock.
+     */
+    static void smoothReduce(final BufferedImage smoothed, final Tile tile, final BufferedImage smoothedTile, final int offsetX, final int offsetY) {
+        IntRaster.copy(smoothedTile, offsetX, offsetY, smoothed, tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight());
     }
 
 
     public interface SmoothCallback {
         void callback(BufferedImage image, long processingTime);
     }
+
+    public interface ErrorCallback {
+        void failed(Throwable error);
+    }
+
+    /**
+     * Told that the {@code width x height} region at {@code x, y} of the image being smoothed holds final pixels.
+     * Regions are reported from several threads at once, and again when a late tile was also run on another client.
+     */
+    public interface ProgressCallback {
+        void progress(BufferedImage image, int x, int y, int width, int height);
+    }
 }
@@ -0,0 +1,44 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Filter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.nio.file.Paths;
+
+/**
+ * Headless server that smooths a single image too large for the heap into a raw file, see
+ * {@link SocketSmoothManager#smoothStreaming}.
+ */
+public final class StreamServer {
+
+    private static final Logger LOGGER = LogManager.getLogger(StreamServer.class);
+
+    private StreamServer() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) {
+        System.out.println("Enter '-h' or '-help' to get information about the arguments.");
+        if (args.length < 2 || "-h".equals(args[0]) || "-help".equals(args[0])) {
+            System.out.println("The first argument is the input image, a '.raw' file is memory mapped.");
+            System.out.println("The second argument is the output '.raw' file: [int width][int height][byte 1][RGB rows].");
+            BatchServer.printFilterUsage();
+            return;
+        }
+        Filter filter;
+        try {
+            filter = BatchServer.filterArgument(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        try (SocketSmoothManager smoothManager = new SocketSmoothManager()) {
+            int clientsCount = (args.length > 4) ? Integer.parseInt(args[4]) : 1;
+            smoothManager.smoothStreaming(new File(args[0]), Paths.get(args[1]), clientsCount, filter);
+        } catch (Exception e) {
+            LOGGER.fatal(e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.RawImageFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+/**
+ * Smooths an image band by band without ever holding it whole. Each band is one row of tiles read together with its
+ * vertical halo, smoothed as an ordinary {@link TileJob} and written into the output file as soon as it is done. At
+ * most {@code window} bands are in memory, so several bands share the clients while the next one is being read. The
+ * execution mode is decided once for the whole image, so every band goes to the same kind of workers. Once a band
+ * fails, no further bands are read or dispatched.
+ */
+final class StreamingJob {
+
+    private static final Logger LOGGER = LogManager.getLogger(StreamingJob.class);
+
+    private final JobScheduler scheduler;
+    private final IntSupplier jobIds;
+    private final Executor executor;
+    private final int tileSize;
+    private final int window;
+    private final int bandRows;
+    private final boolean embeddedOnly;
+    private final ResultCache cache;
+    private final ServerMetrics metrics;
+
+    StreamingJob(JobScheduler scheduler, IntSupplier jobIds, Executor executor, int tileSize, int window, int bandRows,
+                 boolean embeddedOnly, ResultCache cache, ServerMetrics metrics) {
+        this.scheduler = scheduler;
+        this.jobIds = jobIds;
+        this.executor = executor;
+        this.tileSize = tileSize;
+        this.window = window;
+        this.bandRows = bandRows;
+        this.embeddedOnly = embeddedOnly;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    void run(ImageBandReader source, RawImageFile output, Filter filter) throws IOException, InterruptedException {
+        int width = source.getWidth(), height = source.getHeight();
+        int haloBefore = filter.getReachBefore(), haloAfter = filter.getReachAfter();
+        Semaphore permits = new Semaphore(window);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<CompletableFuture<Void>> bands = new ArrayList<>();
+        for (int y = 0; y < height; y += tileSize) {
+            final int coreY = y, coreHeight = Math.min(tileSize, height - y);
+            int haloY = Math.max(y - haloBefore, 0);
+            int haloHeight = Math.min(y + coreHeight + haloAfter, height) - haloY;
+            permits.acquire();
+            if (failed.get()) {
+                permits.release();
+                break;
+            }
+            BufferedImage band;
+            try {
+                band = source.read(haloY, haloHeight);
+            } catch (IOException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+            BufferedImage smoothed = new BufferedImage(width, haloHeight, BufferedImage.TYPE_INT_RGB);
+            List<Tile> tiles = Tile.band(width, haloHeight, coreY - haloY, coreHeight, tileSize, haloBefore, haloAfter);
+            int jobId = jobIds.getAsInt();
+            TileJob job = new TileJob(jobId, band, smoothed, filter, tiles, bandRows, null, cache, metrics.newJob(jobId));
+            job.setEmbeddedOnly(embeddedOnly);
+            bands.add(scheduler.submit(job)
+                    .thenAcceptAsync(result -> write(output, result, coreY - haloY, coreY, coreHeight), executor)
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            failed.set(true);
+                        }
+                        permits.release();
+                    }));
+            LOGGER.debug("Band " + coreY + ".." + (coreY + coreHeight) + " is dispatched as " + job);
+        }
+        try {
+            CompletableFuture.allOf(bands.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw new IOException("Image could not be smoothed", e.getCause());
+        }
+    }
+
+    private static void write(RawImageFile output, BufferedImage band, int bandY, int y, int rows) {
+        try {
+            output.write(band, bandY, y, rows);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
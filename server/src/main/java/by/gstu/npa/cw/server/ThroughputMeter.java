@@ -0,0 +1,63 @@
+package by.gstu.npa.cw.server;
+
+import java.util.Locale;
+
+/**
+ * Measured speed of one client in pixels smoothed per second, counting every pass over a pixel. Older samples fade
+ * with a half-life of {@code smoothing.rateHalfLife} seconds (60 by default), so the rate follows a client whose load
+ * changes while one long job still outweighs a few tiny ones.
+ */
+final class ThroughputMeter {
+
+    private static final double HALF_LIFE = Math.max(Integer.getInteger("smoothing.rateHalfLife", 60), 1) * 1e9;
+
+    private double pixels;
+    private double nanos;
+    private long updatedAt;
+    private long busyUntil;
+
+    synchronized void record(long pixels, long nanos) {
+        if (pixels <= 0 || nanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (updatedAt != 0) {
+            double decay = Math.pow(0.5, (now - updatedAt) / HALF_LIFE);
+            this.pixels *= decay;
+            this.nanos *= decay;
+        }
+        this.pixels += pixels;
+        this.nanos += nanos;
+        updatedAt = now;
+    }
+
+    /**
+     * Records a tile that ran from {@code startedAt} to {@code finishedAt}, counting only the time after the previous
+     * tile finished, so tiles that overlap on a worker with several slots or a pipeline add up to the worker's rate
+     * rather than the rate of one tile. Returns the nanoseconds counted.
+     */
+    synchronized long record(long pixels, long startedAt, long finishedAt) {
+        long nanos = finishedAt - ((busyUntil != 0 && busyUntil - startedAt > 0) ? busyUntil : startedAt);
+        if (busyUntil == 0 || finishedAt - busyUntil > 0) {
+            busyUntil = finishedAt;
+        }
+        record(pixels, nanos);
+        return nanos;
+    }
+
+    synchronized boolean hasHistory() {
+        return updatedAt != 0;
+    }
+
+    /**
+     * Returns the decaying average rate, or {@code 0} before the first sample.
+     */
+    synchronized double getPixelsPerSecond() {
+        return (nanos > 0) ? pixels / nanos * 1e9 : 0;
+    }
+
+    @Override
+    public String toString() {
+        return hasHistory() ? String.format(Locale.ROOT, "%.2f Mpx/s", getPixelsPerSecond() / 1e6) : "unmeasured";
+    }
+}
@@ -0,0 +1,133 @@
+package by.gstu.npa.cw.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class Tile {
+
+    private final int index;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final int haloX;
+    private final int haloY;
+    private final int haloWidth;
+    private final int haloHeight;
+
+    private Tile(int index, int x, int y, int width, int height, int imageWidth, int imageHeight,
+                 int haloBeforeX, int haloAfterX, int haloBeforeY, int haloAfterY) {
+        this.index = index;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.haloX = Math.max(x - haloBeforeX, 0);
+        this.haloY = Math.max(y - haloBeforeY, 0);
+        this.haloWidth = Math.min(x + width + haloAfterX, imageWidth) - haloX;
+        this.haloHeight = Math.min(y + height + haloAfterY, imageHeight) - haloY;
+    }
+
+    static List<Tile> split(int imageWidth, int imageHeight, int tileSize, int haloBefore, int haloAfter) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int y = 0; y < imageHeight; y += tileSize) {
+            for (int x = 0; x < imageWidth; x += tileSize) {
+                tiles.add(new Tile(tiles.size(), x, y,
+                        Math.min(tileSize, imageWidth - x), Math.min(tileSize, imageHeight - y),
+                        imageWidth, imageHeight, haloBefore, haloAfter, haloBefore, haloAfter));
+            }
+        }
+        return tiles;
+    }
+
+    static List<Tile> strips(int imageWidth, int imageHeight, int count, int haloBefore, int haloAfter) {
+        List<Tile> strips = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int x = imageWidth * i / count;
+            strips.add(new Tile(i, x, 0, imageWidth * (i + 1) / count - x, imageHeight, imageWidth, imageHeight,
+                    haloBefore, haloAfter, 0, 0));
+        }
+        return strips;
+    }
+
+    /**
+     * Splits the image into vertical strips as wide as their share of {@code weights}, but at least
+     * {@code minWidth} columns each, which the caller must leave room for.
+     */
+    static List<Tile> strips(int imageWidth, int imageHeight, double[] weights, int minWidth, int haloBefore, int haloAfter) {
+        int count = weights.length;
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        int free = imageWidth - count * minWidth;
+        List<Tile> strips = new ArrayList<>(count);
+        double share = 0;
+        int x = 0;
+        for (int i = 0; i < count; i++) {
+            share += weights[i];
+            int end = (i == count - 1) ? imageWidth : (i + 1) * minWidth + (int) Math.round(free * share / total);
+            strips.add(new Tile(i, x, 0, end - x, imageHeight, imageWidth, imageHeight, haloBefore, haloAfter, 0, 0));
+            x = end;
+        }
+        return strips;
+    }
+
+    static List<Tile> band(int imageWidth, int bandHeight, int coreY, int coreHeight, int tileSize, int haloBefore, int haloAfter) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int x = 0; x < imageWidth; x += tileSize) {
+            tiles.add(new Tile(tiles.size(), x, coreY, Math.min(tileSize, imageWidth - x), coreHeight,
+                    imageWidth, bandHeight, haloBefore, haloAfter, haloBefore, haloAfter));
+        }
+        return tiles;
+    }
+
+    int getHaloBeforeX() {
+        return x - haloX;
+    }
+
+    int getHaloAfterX() {
+        return haloX + haloWidth - x - width;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getX() {
+        return x;
+    }
+
+    int getY() {
+        return y;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getHaloX() {
+        return haloX;
+    }
+
+    int getHaloY() {
+        return haloY;
+    }
+
+    int getHaloWidth() {
+        return haloWidth;
+    }
+
+    int getHaloHeight() {
+        return haloHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "Tile #" + index + " [" + x + ", " + y + ", " + width + "x" + height + "]";
+    }
+}
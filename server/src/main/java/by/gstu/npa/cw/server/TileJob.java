@@ -0,0 +1,336 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.Filter;
+import by.gstu.npa.cw.core.FrameOutputStream;
+import by.gstu.npa.cw.core.IntRaster;
+import by.gstu.npa.cw.server.ServerMetrics.Phase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * One image in {@link HaloMode#FULL} mode: the queue of its tiles that are not smoothed yet and the image they are
+ * merged into. Tiles are handed to clients by {@link JobScheduler}; every request and response carries the job id and
+ * the tile index, so tiles of several jobs can be in flight on the same connections. With a {@link ResultCache}, tiles
+ * whose halo pixels were smoothed before are merged from it and never queued. A tile can run on two clients at once
+ * when the first one is late; the first result is merged and the other one dropped, and a failed tile is queued again
+ * unless its other copy is still running; a tile that fails {@link #MAX_FAILURES} times fails the job. Results are streamed back {@code bandRows} rows a frame and every band is
+ * merged, and reported to the progress callback, as soon as it arrives. A job can be kept to {@link EmbeddedWorker}s,
+ * so a small image never pays for the network.
+ */
+final class TileJob {
+
+    private static final Logger LOGGER = LogManager.getLogger(TileJob.class);
+
+    static final int MAX_FAILURES = 3;
+
+    private final int id;
+    private final BufferedImage original;
+    private final BufferedImage smoothed;
+    private final Filter filter;
+    private final int bandRows;
+    private final SocketSmoothManager.ProgressCallback progress;
+    private final ResultCache cache;
+    private final ServerMetrics.JobTimings timings;
+    private final String[] keys;
+    private final int cachedCount;
+    private final Queue<Tile> tiles;
+    private final AtomicInteger remaining;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicIntegerArray attempts;
+    private final AtomicIntegerArray failures;
+    private final AtomicIntegerArray done;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean embeddedOnly;
+    private final CompletableFuture<BufferedImage> result = new CompletableFuture<>();
+    private volatile long startedAt;
+
+    /**
+     * @param bandRows rows of a tile per result frame, or 0 for one frame per tile
+     * @param progress told about every merged region, or {@code null}
+     */
+    TileJob(int id, BufferedImage original, BufferedImage smoothed, Filter filter, List<Tile> tiles, int bandRows,
+            SocketSmoothManager.ProgressCallback progress, ResultCache cache, ServerMetrics.JobTimings timings) {
+        this.id = id;
+        this.original = original;
+        this.smoothed = smoothed;
+        this.filter = filter;
+        this.bandRows = Math.max(bandRows, 0);
+        this.progress = progress;
+        this.cache = cache;
+        this.timings = timings;
+        this.keys = new String[tiles.size()];
+        this.attempts = new AtomicIntegerArray(tiles.size());
+        this.failures = new AtomicIntegerArray(tiles.size());
+        this.done = new AtomicIntegerArray(tiles.size());
+        this.tiles = new ConcurrentLinkedQueue<>();
+        int cached = 0;
+        for (Tile tile : tiles) {
+            if (cache != null) {
+                String key = ResultCache.key(original, tile.getHaloX(), tile.getHaloY(), tile.getHaloWidth(), tile.getHaloHeight(),
+                        tile.getHaloBeforeX(), tile.getY() - tile.getHaloY(), tile.getWidth(), tile.getHeight(), filter);
+                BufferedImage core = cache.get(key);
+                if (core != null) {
+                    SocketSmoothManager.smoothReduce(smoothed, tile, core, 0, 0);
+                    reportProgress(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight());
+                    cached++;
+                    continue;
+                }
+                keys[tile.getIndex()] = key;
+            }
+            this.tiles.add(tile);
+        }
+        this.cachedCount = cached;
+        this.remaining = new AtomicInteger(this.tiles.size());
+        if (this.tiles.isEmpty()) {
+            finish();
+        }
+    }
+
+    int getCachedCount() {
+        return cachedCount;
+    }
+
+    Filter getFilter() {
+        return filter;
+    }
+
+    BufferedImage getOriginal() {
+        return original;
+    }
+
+    int getBandRows() {
+        return bandRows;
+    }
+
+    /**
+     * Keeps the tiles of the job to embedded workers; set before the job is submitted.
+     */
+    void setEmbeddedOnly(boolean embeddedOnly) {
+        this.embeddedOnly = embeddedOnly;
+    }
+
+    boolean accepts(Worker worker) {
+        return !embeddedOnly || worker.isEmbedded();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    CompletableFuture<BufferedImage> getResult() {
+        return result;
+    }
+
+    ServerMetrics.JobTimings getTimings() {
+        return timings;
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    int pendingCount() {
+        return tiles.size();
+    }
+
+    int inFlightCount() {
+        return inFlight.get();
+    }
+
+    Tile poll() {
+        Tile tile = tiles.poll();
+        if (tile != null) {
+            attempts.incrementAndGet(tile.getIndex());
+            inFlight.incrementAndGet();
+            if (startedAt == 0) {
+                startedAt = System.nanoTime();
+            }
+        }
+        return tile;
+    }
+
+    boolean isDone(Tile tile) {
+        return done.get(tile.getIndex()) != 0;
+    }
+
+    boolean canSpeculate(Tile tile) {
+        return !isDone(tile) && attempts.get(tile.getIndex()) == 1;
+    }
+
+    /**
+     * Starts a second copy of a tile that is running on exactly one client, or returns {@code false}.
+     */
+    boolean speculate(Tile tile) {
+        if (isDone(tile) || !attempts.compareAndSet(tile.getIndex(), 1, 2)) {
+            return false;
+        }
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Queues a failed tile again unless its other copy is still running, or returns {@code false} without queueing it
+     * once it has failed {@link #MAX_FAILURES} times.
+     */
+    boolean retry(Tile tile) {
+        boolean retried = failures.incrementAndGet(tile.getIndex()) < MAX_FAILURES;
+        if (attempts.decrementAndGet(tile.getIndex()) == 0 && !isDone(tile) && retried) {
+            tiles.add(tile);
+        }
+        inFlight.decrementAndGet();
+        return retried;
+    }
+
+    /**
+     * Returns the number of frames the result of a tile is streamed in.
+     */
+    int bandCount(Tile tile) {
+        return Common.bandCount(tile.getHaloHeight(), bandRows);
+    }
+
+    /**
+     * Merges the core pixels of one band of a smoothed tile, the rows from {@code band * bandRows} of its halo
+     * region. Copies of a tile produce the same pixels, so bands of both copies may be merged until one completes.
+     */
+    void mergeBand(Worker worker, Tile tile, int band, BufferedImage rows) {
+        int fromRow = band * ((bandRows > 0) ? bandRows : tile.getHaloHeight());
+        int expectedRows = Math.min(tile.getHaloHeight() - fromRow, (bandRows > 0) ? bandRows : tile.getHaloHeight());
+        if (rows.getWidth() != tile.getHaloWidth() || rows.getHeight() != expectedRows) {
+            throw new UncheckedIOException(new IOException("Client " + worker + " returned " + rows.getWidth() + "x"
+                    + rows.getHeight() + " for band " + band + " of " + tile));
+        }
+        mergeRows(tile, rows, fromRow, fromRow, fromRow + expectedRows);
+    }
+
+    /**
+     * Merges the core pixels of rows {@code fromRow} to {@code toRow} of a tile smoothed in place, an image of its
+     * whole halo region.
+     */
+    void mergeRows(Tile tile, BufferedImage tileImage, int fromRow, int toRow) {
+        mergeRows(tile, tileImage, 0, fromRow, toRow);
+    }
+
+    private void mergeRows(Tile tile, BufferedImage rows, int rowsTop, int fromRow, int toRow) {
+        if (isDone(tile)) {
+            return;
+        }
+        int coreTop = tile.getY() - tile.getHaloY();
+        int top = Math.max(fromRow, coreTop), bottom = Math.min(toRow, coreTop + tile.getHeight());
+        if (top < bottom) {
+            IntRaster.copy(rows, tile.getHaloBeforeX(), top - rowsTop, smoothed,
+                    tile.getX(), tile.getHaloY() + top, tile.getWidth(), bottom - top);
+            reportProgress(tile.getX(), tile.getHaloY() + top, tile.getWidth(), bottom - top);
+        }
+    }
+
+    /**
+     * Marks a tile whose bands are all merged as done, or returns {@code false} if another copy of it was done first.
+     */
+    boolean complete(Worker worker, Tile tile) {
+        attempts.decrementAndGet(tile.getIndex());
+        if (!done.compareAndSet(tile.getIndex(), 0, 1)) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        if (cache != null) {
+            cache.put(keys[tile.getIndex()], IntRaster.crop(smoothed, tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight()));
+        }
+        inFlight.decrementAndGet();
+        if (remaining.decrementAndGet() == 0) {
+            finish();
+        }
+        return true;
+    }
+
+    private void reportProgress(int x, int y, int width, int height) {
+        if (progress != null) {
+            progress.progress(smoothed, x, y, width, height);
+        }
+    }
+
+    private void finish() {
+        timings.finish();
+        result.complete(smoothed);
+    }
+
+    /**
+     * Fails the job once no worker is left that may run its remaining tiles, so a partly smoothed image is never
+     * returned, cached or written as a result.
+     */
+    void abandon() {
+        fail(new IllegalStateException("There are no workers left for job " + id + ", " + remaining.get()
+                + " tiles are not smoothed"));
+    }
+
+    /**
+     * Fails the job, for instance because a tile keeps failing; tiles still running are dropped when they finish.
+     */
+    void fail(Throwable error) {
+        if (!result.isDone()) {
+            LOGGER.warn(error.getMessage());
+            timings.finish();
+            result.completeExceptionally(error);
+        }
+    }
+
+    boolean isFailed() {
+        return result.isCompletedExceptionally();
+    }
+
+    boolean markScheduled() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    void unmarkScheduled() {
+        scheduled.set(false);
+    }
+
+    FrameOutputStream encodeRequest(WorkerConnection worker, Tile tile) {
+        try {
+            FrameOutputStream message = new FrameOutputStream(64, worker.getBufferPool());
+            message.write(Common.STATUS_SMOOTH);
+            Common.putIntToSocket(message, id);
+            Common.putIntToSocket(message, tile.getIndex());
+            Common.putFilter(message, filter);
+            Common.putIntToSocket(message, bandRows);
+            long encodeStartedAt = System.nanoTime();
+            message.writeFrame(id, tile.getIndex(), 0, original,
+                    tile.getHaloX(), tile.getHaloY(), tile.getHaloWidth(), tile.getHaloHeight(), worker.getCodec());
+            timings.record(worker, Phase.ENCODE, ServerMetrics.elapsedSince(encodeStartedAt));
+            return message;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes a frame received from the worker and gives its buffer back.
+     */
+    static BufferedImage decode(WorkerConnection worker, ByteBuffer frame) {
+        try {
+            return Common.decode(frame);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            worker.getBufferPool().release(frame);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Job " + id;
+    }
+}
@@ -0,0 +1,35 @@
+package by.gstu.npa.cw.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Something {@link JobScheduler} hands tiles to: a client behind a {@link WorkerConnection} or an
+ * {@link EmbeddedWorker} on the server's own cores. Workers are checked in and out of the {@link WorkerRegistry} and
+ * measured alike, so a job can run on both kinds at once.
+ */
+interface Worker extends AutoCloseable {
+
+    long getConnectedAt();
+
+    ThroughputMeter getThroughput();
+
+    /**
+     * Returns {@code true} for a worker that shares memory with the server and never touches the network.
+     */
+    boolean isEmbedded();
+
+    /**
+     * Returns the number of tiles the worker smooths at once.
+     */
+    int getSlots();
+
+    /**
+     * Smooths a tile of the job, merging its bands into the job as they are done and recording the phases on the job's
+     * timings. The future completes with the nanoseconds the tile took once its last band is merged.
+     */
+    CompletableFuture<Long> smooth(TileJob job, Tile tile, Executor executor);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,432 @@
+package by.gstu.npa.cw.server;
+
+import by.gstu.npa.cw.core.BufferPool;
+import by.gstu.npa.cw.core.Common;
+import by.gstu.npa.cw.core.FrameOutputStream;
+import by.gstu.npa.cw.core.ImageCodec;
+import by.gstu.npa.cw.server.ServerMetrics.Phase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client connection driven by {@link NioTransport}. Reading is a state machine over the handshake and the
+ * length-prefixed frames of {@link Common}; the client's hello names the codecs it reads and the tiles it smooths at
+ * once, so several requests can be outstanding and their results arrive in any order. Every complete frame body completes the pending {@link #receive(int, int)}
+ * with the same job and tile identifiers, or waits for it in order of arrival, since a result can be streamed in
+ * several frames with the same identifiers; empty frames are heartbeats. Frames are read into buffers
+ * of the {@link BufferPool}, which whoever decodes them gives back; a frame longer than the largest region the client
+ * has been {@link #expect asked} for is a protocol error, so a client cannot make the I/O thread allocate at will. Messages are queued from any thread and drained by
+ * the connection's I/O thread with gathering writes, and their frame buffers are released once written.
+ */
+final class WorkerConnection implements Worker {
+
+    private static final Logger LOGGER = LogManager.getLogger(WorkerConnection.class);
+
+    private static final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final long HEARTBEAT_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Common.HEARTBEAT_TIMEOUT);
+    private static final int HELLO_HEADER_LENGTH = 9;
+
+    private enum ReadState {
+        HELLO_HEADER, HELLO_BODY, FRAME_LENGTH, FRAME_BODY
+    }
+
+    private final SocketChannel channel;
+    private final NioTransport.IoThread ioThread;
+    private final List<ImageCodec> preferredCodecs;
+    private final BufferPool bufferPool;
+    private final NioTransport.Listener listener;
+    private final SocketAddress address;
+    private final long connectedAt = System.nanoTime();
+    private volatile long lastSeen = connectedAt;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private final ThroughputMeter throughput = new ThroughputMeter();
+    private final Queue<FrameOutputStream> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Map<Long, CompletableFuture<ByteBuffer>> receivers = new HashMap<>();
+    private final Map<Long, Queue<ByteBuffer>> unclaimed = new HashMap<>();
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    private SelectionKey key;
+    private ReadState readState = ReadState.HELLO_HEADER;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(HELLO_HEADER_LENGTH);
+    private byte[] helloHeader;
+    private volatile ImageCodec codec;
+    private volatile int slots;
+    private final AtomicInteger frameLimit = new AtomicInteger(Common.maxFrameLength(1, 1));
+
+    WorkerConnection(SocketChannel channel, NioTransport.IoThread ioThread, List<ImageCodec> preferredCodecs,
+                     BufferPool bufferPool, NioTransport.Listener listener) throws IOException {
+        this.channel = channel;
+        this.ioThread = ioThread;
+        this.preferredCodecs = preferredCodecs;
+        this.bufferPool = bufferPool;
+        this.listener = listener;
+        this.address = channel.getRemoteAddress();
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    @Override
+    public ThroughputMeter getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public boolean isEmbedded() {
+        return false;
+    }
+
+    @Override
+    public int getSlots() {
+        return slots;
+    }
+
+    ImageCodec getCodec() {
+        return codec;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    boolean isOpen() {
+        return open.get();
+    }
+
+    void send(FrameOutputStream message) {
+        if (!open.get()) {
+            return;
+        }
+        writeQueue.add(message);
+        if (ioThread.inIoThread()) {
+            flush();
+        } else {
+            ioThread.execute(this::flush);
+        }
+    }
+
+    /**
+     * Returns the next frame with the given identifiers, without its length prefix; give it back with
+     * {@link BufferPool#release} once it is decoded.
+     */
+    CompletableFuture<ByteBuffer> receive(int jobId, int tileId) {
+        Long id = frameId(jobId, tileId);
+        synchronized (this) {
+            Queue<ByteBuffer> frames = unclaimed.get(id);
+            if (frames != null) {
+                ByteBuffer frame = frames.remove();
+                if (frames.isEmpty()) {
+                    unclaimed.remove(id);
+                }
+                return CompletableFuture.completedFuture(frame);
+            }
+            CompletableFuture<ByteBuffer> receiver = new CompletableFuture<>();
+            if (!open.get()) {
+                receiver.completeExceptionally(new IOException("Connection " + this + " is closed"));
+            } else if (receivers.putIfAbsent(id, receiver) != null) {
+                receiver.completeExceptionally(new IllegalStateException("Job " + jobId + ", tile " + tileId
+                        + " is already awaited from " + this));
+            }
+            return receiver;
+        }
+    }
+
+    /**
+     * Drops the frames of an aborted job that arrived unclaimed and fails the receives still waiting for one.
+     */
+    void discard(int jobId) {
+        List<CompletableFuture<ByteBuffer>> dropped = new ArrayList<>();
+        synchronized (this) {
+            receivers.entrySet().removeIf(entry -> {
+                if (frameJobId(entry.getKey()) != jobId) {
+                    return false;
+                }
+                dropped.add(entry.getValue());
+                return true;
+            });
+            unclaimed.entrySet().removeIf(entry -> {
+                if (frameJobId(entry.getKey()) != jobId) {
+                    return false;
+                }
+                entry.getValue().forEach(bufferPool::release);
+                return true;
+            });
+        }
+        IOException aborted = new IOException("Job " + jobId + " is aborted on " + this);
+        for (CompletableFuture<ByteBuffer> receiver : dropped) {
+            receiver.completeExceptionally(aborted);
+        }
+    }
+
+    /**
+     * Allows frames as long as a {@code width x height} region takes; call before requesting one that large.
+     */
+    void expect(int width, int height) {
+        int length = Common.maxFrameLength(width, height);
+        frameLimit.accumulateAndGet(length, Math::max);
+    }
+
+    CompletableFuture<ByteBuffer> request(int jobId, int tileId, FrameOutputStream message) {
+        CompletableFuture<ByteBuffer> response = receive(jobId, tileId);
+        send(message);
+        return response;
+    }
+
+    /**
+     * Sends the tile's request and merges the bands of the result as they arrive, decoding them on the executor.
+     */
+    @Override
+    public CompletableFuture<Long> smooth(TileJob job, Tile tile, Executor executor) {
+        TileTransfer transfer = new TileTransfer(job, tile);
+        return CompletableFuture.supplyAsync(() -> job.encodeRequest(this, tile), executor)
+                .thenCompose(message -> {
+                    expect(tile.getHaloWidth(), tile.getHaloHeight());
+                    transfer.sentAt = System.nanoTime();
+                    return receiveBand(transfer, request(job.getId(), tile.getIndex(), message), 0, executor);
+                })
+                .thenApply(ignored -> transfer.finish());
+    }
+
+    private CompletableFuture<Void> receiveBand(TileTransfer transfer, CompletableFuture<ByteBuffer> frame, int band,
+                                                Executor executor) {
+        TileJob job = transfer.job;
+        return frame.thenAcceptAsync(received -> {
+            long decodeStartedAt = System.nanoTime();
+            transfer.receivedAt = decodeStartedAt;
+            transfer.compute += ServerMetrics.micros(Common.frameComputeTime(received));
+            BufferedImage rows = TileJob.decode(this, received);
+            long mergeStartedAt = System.nanoTime();
+            transfer.decode += mergeStartedAt - decodeStartedAt;
+            job.mergeBand(this, transfer.tile, band, rows);
+            transfer.merge += ServerMetrics.elapsedSince(mergeStartedAt);
+        }, executor).thenCompose(ignored -> (band + 1 < job.bandCount(transfer.tile))
+                ? receiveBand(transfer, receive(job.getId(), transfer.tile.getIndex()), band + 1, executor)
+                : CompletableFuture.completedFuture(null));
+    }
+
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            LOGGER.info("Connection " + this + " is broken: " + e.getMessage());
+            close();
+        }
+    }
+
+    void checkTimeouts(long now) {
+        if (codec == null && now - connectedAt > HANDSHAKE_TIMEOUT) {
+            LOGGER.warn("Connection " + this + " has not completed the handshake in time");
+            close();
+        } else if (codec != null && now - lastSeen > HEARTBEAT_TIMEOUT) {
+            LOGGER.warn("Connection " + this + " has missed its heartbeats");
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        while (true) {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            } else if (read > 0) {
+                lastSeen = System.nanoTime();
+            }
+            if (readBuffer.hasRemaining()) {
+                return;
+            }
+            readBuffer.flip();
+            switch (readState) {
+                case HELLO_HEADER:
+                    helloHeader = readBuffer.array();
+                    readBuffer = ByteBuffer.allocate((helloHeader[HELLO_HEADER_LENGTH - 1] & 0xFF) + 4);
+                    readState = ReadState.HELLO_BODY;
+                    break;
+                case HELLO_BODY:
+                    completeHandshake(readBuffer.array());
+                    readState = ReadState.FRAME_LENGTH;
+                    lengthBuffer.clear();
+                    readBuffer = lengthBuffer;
+                    break;
+                case FRAME_LENGTH:
+                    int length = readBuffer.getInt();
+                    if (length == 0) {
+                        lengthBuffer.clear();
+                        break;
+                    }
+                    if (length < Common.FRAME_HEADER_LENGTH || length > frameLimit.get()) {
+                        throw new ProtocolException("Illegal frame length: " + length);
+                    }
+                    readBuffer = bufferPool.acquire(length);
+                    readState = ReadState.FRAME_BODY;
+                    break;
+                case FRAME_BODY:
+                    deliver(readBuffer);
+                    readState = ReadState.FRAME_LENGTH;
+                    lengthBuffer.clear();
+                    readBuffer = lengthBuffer;
+                    break;
+                default:
+                    throw new AssertionError(readState);
+            }
+        }
+    }
+
+    private void completeHandshake(byte[] body) throws IOException {
+        byte[] hello = new byte[helloHeader.length + body.length];
+        System.arraycopy(helloHeader, 0, hello, 0, helloHeader.length);
+        System.arraycopy(body, 0, hello, helloHeader.length, body.length);
+        ByteArrayInputStream helloStream = new ByteArrayInputStream(hello);
+        List<ImageCodec> offered = Common.receiveHello(helloStream);
+        slots = Common.receiveSlots(helloStream);
+        ImageCodec chosen = ImageCodec.PNG;
+        for (ImageCodec preferred : preferredCodecs) {
+            if (offered.contains(preferred)) {
+                chosen = preferred;
+                break;
+            }
+        }
+        FrameOutputStream welcome = new FrameOutputStream(16, bufferPool);
+        Common.sendWelcome(welcome, chosen);
+        send(welcome);
+        codec = chosen;
+        listener.connected(this);
+    }
+
+    private void deliver(ByteBuffer frame) {
+        Long id = frameId(Common.frameJobId(frame), Common.frameTileId(frame));
+        CompletableFuture<ByteBuffer> receiver;
+        synchronized (this) {
+            receiver = receivers.remove(id);
+            if (receiver == null) {
+                unclaimed.computeIfAbsent(id, ignored -> new ArrayDeque<>()).add(frame);
+                return;
+            }
+        }
+        if (!receiver.complete(frame)) {
+            bufferPool.release(frame);
+        }
+    }
+
+    private static Long frameId(int jobId, int tileId) {
+        return ((long) jobId << 32) | (tileId & 0xFFFFFFFFL);
+    }
+
+    private static int frameJobId(long frameId) {
+        return (int) (frameId >>> 32);
+    }
+
+    private void flush() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            FrameOutputStream message;
+            while ((message = writeQueue.peek()) != null) {
+                channel.write(message.toByteBuffers());
+                if (message.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                message.release();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            LOGGER.info("Connection " + this + " is broken: " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!open.compareAndSet(true, false)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.info(e);
+        }
+        writeQueue.clear();
+        List<CompletableFuture<ByteBuffer>> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(receivers.values());
+            receivers.clear();
+            unclaimed.values().forEach(frames -> frames.forEach(bufferPool::release));
+            unclaimed.clear();
+        }
+        IOException closed = new IOException("Connection " + this + " is closed");
+        for (CompletableFuture<ByteBuffer> receiver : pending) {
+            receiver.completeExceptionally(closed);
+        }
+        if (codec != null) {
+            listener.disconnected(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address + " (" + codec + ", " + slots + " slot" + ((slots == 1) ? "" : "s") + ")";
+    }
+
+
+    /**
+     * Phase times of one tile on this connection, summed over the bands of its result.
+     */
+    private final class TileTransfer {
+
+        private final TileJob job;
+        private final Tile tile;
+        private long sentAt;
+        private long receivedAt;
+        private long compute;
+        private long decode;
+        private long merge;
+
+        private TileTransfer(TileJob job, Tile tile) {
+            this.job = job;
+            this.tile = tile;
+        }
+
+        private long finish() {
+            ServerMetrics.JobTimings timings = job.getTimings();
+            timings.record(WorkerConnection.this, Phase.COMPUTE, compute);
+            timings.record(WorkerConnection.this, Phase.TRANSFER, receivedAt - sentAt - compute);
+            timings.record(WorkerConnection.this, Phase.DECODE, decode);
+            timings.record(WorkerConnection.this, Phase.MERGE, merge);
+            return receivedAt - sentAt;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package by.gstu.npa.cw.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Connected clients and embedded workers with the number of tiles each has in flight. A worker takes as many tiles as
+ * it has slots, and a client {@code pipelineDepth} more, so the next tile travels while the current one is smoothed.
+ * A slot is checked out by raising the worker's count below its capacity, which only one caller can win, so checking
+ * out and returning workers needs no global lock. Embedded workers are checked out before clients, so work that fits
+ * on the server's own cores stays off the network, and the least loaded worker of a kind goes first.
+ */
+final class WorkerRegistry {
+
+    private final int pipelineDepth;
+    private final Map<Worker, Load> workers = new ConcurrentHashMap<>();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    WorkerRegistry(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Pipeline depth must not be negative: " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    void add(Worker worker) {
+        int capacity = Math.max(worker.getSlots(), 1) + (worker.isEmbedded() ? 0 : pipelineDepth);
+        workers.putIfAbsent(worker, new Load(capacity));
+        wakeWaiters();
+    }
+
+    boolean remove(Worker worker) {
+        return workers.remove(worker) != null;
+    }
+
+    List<Worker> removeAll() {
+        List<Worker> removed = new ArrayList<>(workers.keySet());
+        for (Worker worker : removed) {
+            remove(worker);
+        }
+        return removed;
+    }
+
+    /**
+     * Checks out every client with nothing in flight as a whole, so it takes no tiles until it is released with
+     * {@link #releaseWhole}; embedded workers stay idle.
+     */
+    List<WorkerConnection> checkOutIdleClients() {
+        List<WorkerConnection> checkedOut = new ArrayList<>();
+        for (Map.Entry<Worker, Load> entry : workers.entrySet()) {
+            Load load = entry.getValue();
+            if (!entry.getKey().isEmbedded() && load.inFlight.compareAndSet(0, load.capacity)) {
+                checkedOut.add((WorkerConnection) entry.getKey());
+            }
+        }
+        return checkedOut;
+    }
+
+    /**
+     * Checks out a slot of the least loaded worker, or returns {@code null} if every slot is taken.
+     */
+    Worker checkOut() {
+        Worker worker = checkOut(true);
+        return (worker != null) ? worker : checkOut(false);
+    }
+
+    private Worker checkOut(boolean embedded) {
+        while (true) {
+            Worker chosen = null;
+            Load chosenLoad = null;
+            int chosenInFlight = 0;
+            for (Map.Entry<Worker, Load> entry : workers.entrySet()) {
+                Load load = entry.getValue();
+                int inFlight = load.inFlight.get();
+                if (entry.getKey().isEmbedded() == embedded && inFlight < load.capacity
+                        && (chosen == null || (long) inFlight * chosenLoad.capacity < (long) chosenInFlight * load.capacity)) {
+                    chosen = entry.getKey();
+                    chosenLoad = load;
+                    chosenInFlight = inFlight;
+                }
+            }
+            if (chosen == null) {
+                return null;
+            }
+            if (chosenLoad.inFlight.compareAndSet(chosenInFlight, chosenInFlight + 1)) {
+                return chosen;
+            }
+        }
+    }
+
+    /**
+     * Returns a slot of the worker.
+     */
+    void release(Worker worker) {
+        Load load = workers.get(worker);
+        if (load != null) {
+            load.inFlight.updateAndGet(inFlight -> Math.max(inFlight - 1, 0));
+        }
+    }
+
+    /**
+     * Returns a worker checked out by {@link #checkOutIdleClients()}.
+     */
+    void releaseWhole(Worker worker) {
+        Load load = workers.get(worker);
+        if (load != null) {
+            load.inFlight.set(0);
+        }
+    }
+
+    /**
+     * Returns the number of tiles the worker has in flight, {@code 0} if it is not registered.
+     */
+    int inFlight(Worker worker) {
+        Load load = workers.get(worker);
+        return (load != null) ? load.inFlight.get() : 0;
+    }
+
+    int size() {
+        return workers.size();
+    }
+
+    /**
+     * Returns {@code true} if any registered worker passes the test.
+     */
+    boolean any(Predicate<Worker> test) {
+        for (Worker worker : workers.keySet()) {
+            if (test.test(worker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int clientCount() {
+        int count = 0;
+        for (Worker worker : workers.keySet()) {
+            if (!worker.isEmbedded()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int idleCount() {
+        int count = 0;
+        for (Load load : workers.values()) {
+            if (load.inFlight.get() == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int busyCount() {
+        return size() - idleCount();
+    }
+
+    /**
+     * Returns a future that completes once at least {@code count} clients are connected.
+     */
+    CompletableFuture<Void> awaitClients(int count) {
+        Waiter waiter = new Waiter(count);
+        waiters.add(waiter);
+        wakeWaiters();
+        return waiter.future;
+    }
+
+    private void wakeWaiters() {
+        int clients = clientCount();
+        for (Waiter waiter : waiters) {
+            if (clients >= waiter.count && waiters.remove(waiter)) {
+                waiter.future.complete(null);
+            }
+        }
+    }
+
+
+    private static final class Load {
+        private final int capacity;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Load(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class Waiter {
+        private final int count;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Waiter(int count) {
+            this.count = count;
+        }
+    }
+}